@@ -0,0 +1,101 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.UpstreamMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of the payloads CCS sends on every packet, see {@link CcsConnection}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@State(Scope.Thread)
+public class CcsMessageDecoderBenchmark {
+
+    static final String ACK = "{\"message_type\":\"ack\",\"from\":\"" + LogRegistrationStoreBenchmark.token(1)
+            + "\",\"message_id\":\"1x2k3-jfk2a9s0-4fzyo\"}";
+
+    static final String NACK = "{\"message_type\":\"nack\",\"from\":\"" + LogRegistrationStoreBenchmark.token(1)
+            + "\",\"message_id\":\"1x2k3-jfk2a9s0-4fzyo\",\"error\":\"DEVICE_UNREGISTERED\","
+            + "\"error_description\":\"Device is not registered\"}";
+
+    static final String UPSTREAM = "{\"category\":\"org.codepond.fcmapp\",\"data\":{"
+            + "\"action\":\"org.codepond.fcmappserver.MESSAGE\",\"recipient\":\"alice@example.com\","
+            + "\"message\":\"Hello, how are you doing today?\"},\"message_id\":\"m-1476392847\",\"from\":\""
+            + LogRegistrationStoreBenchmark.token(1) + "\"}";
+
+    private CcsMessageDecoder.Handler mHandler;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        mHandler = new CcsMessageDecoder.Handler() {
+            @Override
+            public void onAck(String messageId, String from, String registrationId) {
+                blackhole.consume(messageId);
+                blackhole.consume(from);
+            }
+
+            @Override
+            public void onNack(String messageId, String from, String error, String errorDescription) {
+                blackhole.consume(messageId);
+                blackhole.consume(error);
+            }
+
+            @Override
+            public void onControl(String controlType) {
+                blackhole.consume(controlType);
+            }
+
+            @Override
+            public void onUpstream(UpstreamMessage.Request message) {
+                blackhole.consume(message);
+            }
+        };
+    }
+
+    @Benchmark
+    public void ack() throws IOException {
+        CcsMessageDecoder.decode(ACK, mHandler);
+    }
+
+    @Benchmark
+    public void nack() throws IOException {
+        CcsMessageDecoder.decode(NACK, mHandler);
+    }
+
+    @Benchmark
+    public void upstream() throws IOException {
+        CcsMessageDecoder.decode(UPSTREAM, mHandler);
+    }
+}
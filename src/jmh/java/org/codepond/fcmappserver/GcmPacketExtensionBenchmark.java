@@ -0,0 +1,105 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonAdapter;
+import com.squareup.moshi.Moshi;
+import org.codepond.fcmappserver.CcsClient.GcmPacketExtension;
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the XML stanza of a downstream message, done once per packet sent.
+ * Compare {@link #encodeRequest()} with {@link #moshiAndPacket()}, the way requests used to
+ * be encoded, with {@code -prof gc} to see the allocation per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms512m", "-Xmx512m"})
+@State(Scope.Thread)
+public class GcmPacketExtensionBenchmark {
+
+    /**
+     * Length of the data message, a small notification and one close to the 4KB payload limit.
+     */
+    @Param({"64", "3500"})
+    int messageLength;
+
+    private GcmPacketExtension mExtension;
+    private DownstreamMessage.Request mRequest;
+    private MessageTemplate mTemplate;
+    private JsonAdapter<DownstreamMessage.Request> mAdapter;
+
+    @Setup
+    public void setUp() {
+        StringBuilder message = new StringBuilder(messageLength);
+        for (int i = 0; i < messageLength; i++) {
+            message.append((char) ('a' + i % 26));
+        }
+        String json = "{\"to\":\"" + LogRegistrationStoreBenchmark.token(1)
+                + "\",\"message_id\":\"1x2k3-jfk2a9s0-4fzyo\",\"delivery_receipt_requested\":true,"
+                + "\"data\":{\"message\":\"" + message + "\"}}";
+        mExtension = new GcmPacketExtension(json);
+        mRequest = new DownstreamMessage.Request(LogRegistrationStoreBenchmark.token(1), "1x2k3-jfk2a9s0-4fzyo",
+                Collections.singletonMap("message", message.toString()));
+        mTemplate = new MessageTemplate(mRequest.getData());
+        mAdapter = new Moshi.Builder().build().adapter(DownstreamMessage.Request.class);
+    }
+
+    @Benchmark
+    public String extensionToXml() {
+        return mExtension.toXML();
+    }
+
+    @Benchmark
+    public String packetToXml() {
+        return mExtension.toPacket().toXML();
+    }
+
+    @Benchmark
+    public String encodeRequest() {
+        return StanzaEncoder.encode(mRequest);
+    }
+
+    /**
+     * Encodes only the recipient and message id, the payload was encoded with the template.
+     */
+    @Benchmark
+    public String encodeFromTemplate() {
+        return mTemplate.encode(mRequest.getTo(), mRequest.getMessageId());
+    }
+
+    @Benchmark
+    public String moshiAndPacket() {
+        return new GcmPacketExtension(mAdapter.toJson(mRequest)).toPacket().toXML();
+    }
+}
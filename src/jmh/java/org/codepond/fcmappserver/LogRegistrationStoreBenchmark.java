@@ -0,0 +1,137 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Append throughput and startup load time of {@link LogRegistrationStore}.
+ */
+@Fork(1)
+public class LogRegistrationStoreBenchmark {
+
+    /**
+     * Registration tokens are around 150 characters long.
+     */
+    static String token(long i) {
+        return "fcm-token-" + i + "-APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx5gJ7sMw8JXlLqe4XNB2vXM4i3xT7oD1sEWoX0n8m5Ua7n3B-5tfjOwxNsVnP4_OHjgGX0iYf";
+    }
+
+    static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @State(Scope.Benchmark)
+    public static class AppendState {
+        File directory;
+        LogRegistrationStore store;
+        final AtomicLong counter = new AtomicLong();
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("registrations").toFile();
+            store = new LogRegistrationStore(directory, LogRegistrationStore.DEFAULT_SEGMENT_SIZE, 0, TimeUnit.MINUTES);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            store.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LoadState {
+        @Param("1000000")
+        int registrations;
+
+        /**
+         * Whether the registrations are loaded from a snapshot or replayed from the log.
+         */
+        @Param({"true", "false"})
+        boolean compacted;
+
+        File directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("registrations").toFile();
+            LogRegistrationStore store = new LogRegistrationStore(directory,
+                    LogRegistrationStore.DEFAULT_SEGMENT_SIZE, 0, TimeUnit.MINUTES);
+            for (int i = 0; i < registrations; i++) {
+                store.addRegistration(token(i), "account-" + (i % (registrations / 3)));
+            }
+            if (compacted) {
+                store.compact();
+            }
+            store.close();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    @Threads(4)
+    public void append(AppendState state) {
+        long i = state.counter.incrementAndGet();
+        state.store.addRegistration(token(i), "account-" + (i & 0xffff));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public int load(LoadState state) throws IOException {
+        LogRegistrationStore store = new LogRegistrationStore(state.directory,
+                LogRegistrationStore.DEFAULT_SEGMENT_SIZE, 0, TimeUnit.MINUTES);
+        store.close();
+        return store.size();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of journaling a downstream message with {@link OutboundJournal}: recording and completing
+ * it, and the time until it may be sent, with four threads sharing the group commits.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class OutboundJournalBenchmark {
+
+    private static final String STANZA = "<message><gcm xmlns=\"google:mobile:data\">{&quot;to&quot;:&quot;"
+            + LogRegistrationStoreBenchmark.token(1) + "&quot;,&quot;message_id&quot;:&quot;m-1&quot;,"
+            + "&quot;data&quot;:{&quot;message&quot;:&quot;benchmark&quot;}}</gcm></message>";
+
+    private final AtomicLong mCounter = new AtomicLong();
+    private File mDirectory;
+    private OutboundJournal mJournal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mDirectory = Files.createTempDirectory("outbound").toFile();
+        mJournal = new OutboundJournal(mDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mJournal.close();
+        LogRegistrationStoreBenchmark.delete(mDirectory);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void appendAndComplete() {
+        mJournal.complete(mJournal.append("m-" + mCounter.incrementAndGet(), STANZA, Lane.NORMAL, () -> { }));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void appendUntilDurable() {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        long sequence = mJournal.append("m-" + mCounter.incrementAndGet(), STANZA, Lane.NORMAL, () -> durable.complete(null));
+        durable.join();
+        mJournal.complete(sequence);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registering tokens and generating message ids, each alone and with four threads
+ * competing for the same store or sequence.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class RegistrationBenchmark {
+
+    /**
+     * Tokens are reused after this many registrations to keep the store's size bounded.
+     */
+    private static final int TOKENS = 1 << 16;
+
+    private final String[] mTokens = new String[TOKENS];
+    private final ConcurrentRegistrationStore mStore = new ConcurrentRegistrationStore();
+    private final MessageIdGenerator mIdGenerator = new MessageIdGenerator("bench");
+    private final AtomicLong mCounter = new AtomicLong();
+
+    public RegistrationBenchmark() {
+        for (int i = 0; i < TOKENS; i++) {
+            mTokens[i] = LogRegistrationStoreBenchmark.token(i);
+        }
+    }
+
+    private void addRegistration() {
+        long i = mCounter.getAndIncrement();
+        mStore.addRegistration(mTokens[(int) (i & (TOKENS - 1))], "account-" + (i & 0xfff));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void addRegistrationUncontended() {
+        addRegistration();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addRegistrationContended() {
+        addRegistration();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String nextIdUncontended() {
+        return mIdGenerator.nextId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String nextIdContended() {
+        return mIdGenerator.nextId();
+    }
+}
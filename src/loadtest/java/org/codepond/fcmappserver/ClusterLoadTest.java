@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonReader;
+import okio.Okio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs a cluster of app servers as separate local processes against a {@link FakeCcsServer}
+ * and checks that registrations end up with the node owning them and that a broadcast
+ * reaches every token exactly once.
+ * <br>
+ * Options are passed as name=value arguments, e.g. nodes=3 registrations=10000. Node logs
+ * are written to a temporary directory, which is printed at the start.
+ */
+public class ClusterLoadTest {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            options.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        int nodes = Integer.parseInt(options.getProperty("nodes", "3"));
+        int connections = Integer.parseInt(options.getProperty("connections", "2"));
+        int registrations = Integer.parseInt(options.getProperty("registrations", "10000"));
+        int basePort = Integer.parseInt(options.getProperty("basePort", "18100"));
+
+        FakeCcsServer server = new FakeCcsServer(0, false);
+        server.setAckLatency(5, 5, TimeUnit.MILLISECONDS);
+        server.start();
+
+        String secret = UUID.randomUUID().toString();
+        File directory = Files.createTempDirectory("fcm-cluster").toFile();
+        System.out.println("Node logs in " + directory);
+        StringBuilder nodeList = new StringBuilder();
+        List<String> urls = new ArrayList<>();
+        for (int i = 1; i <= nodes; i++) {
+            String url = "http://localhost:" + (basePort + i);
+            urls.add(url);
+            nodeList.append(nodeList.length() > 0 ? "," : "").append("node").append(i).append('=').append(url);
+        }
+
+        List<Process> processes = new ArrayList<>();
+        boolean passed = false;
+        try {
+            for (int i = 1; i <= nodes; i++) {
+                Properties properties = new Properties();
+                properties.setProperty("org.codepond.fcmappserver.senderId", "loadtest");
+                properties.setProperty("org.codepond.fcmappserver.serverKey", "loadtest");
+                properties.setProperty("org.codepond.fcmappserver.host", "localhost");
+                properties.setProperty("org.codepond.fcmappserver.port", String.valueOf(server.getPort()));
+                properties.setProperty("org.codepond.fcmappserver.tls", "false");
+                properties.setProperty("org.codepond.fcmappserver.connections", String.valueOf(connections));
+                properties.setProperty("org.codepond.fcmappserver.nodeId", "node" + i);
+                properties.setProperty("org.codepond.fcmappserver.cluster.nodes", nodeList.toString());
+                properties.setProperty("org.codepond.fcmappserver.cluster.secret", secret);
+                File config = new File(directory, "node" + i + ".properties");
+                try (OutputStream out = new FileOutputStream(config)) {
+                    properties.store(out, null);
+                }
+                processes.add(new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+                        "-cp", System.getProperty("java.class.path"), CcsClient.class.getName(), config.getPath())
+                        .redirectErrorStream(true)
+                        .redirectOutput(new File(directory, "node" + i + ".log"))
+                        .start());
+            }
+
+            await("nodes to connect", () -> server.getConnectionCount() == nodes * connections
+                    && total(urls, "registrations", secret) == 0);
+            long start = System.nanoTime();
+            server.sendUpstream(registrations);
+            await("registrations to reach their nodes", () -> total(urls, "registrations", secret) == registrations);
+            System.out.printf("Registered %d tokens in %d ms%n", registrations,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            long misplaced = total(urls, "misplaced", secret);
+            for (String url : urls) {
+                Map<String, String> status = call(url + "/cluster/status", null, secret);
+                System.out.printf("%s: %s registrations, %s misplaced%n", status.get("node"),
+                        status.get("registrations"), status.get("misplaced"));
+            }
+
+            start = System.nanoTime();
+            call(urls.get(0) + "/cluster/broadcast", "{\"data\":{\"message\":\"cluster load test\"}}", secret);
+            await("the broadcast to complete", () -> server.getAckedCount() >= registrations);
+            System.out.printf("Broadcast to %d tokens in %d ms, CCS received %d messages%n", registrations,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), server.getReceivedCount());
+
+            passed = misplaced == 0 && server.getReceivedCount() == registrations;
+            System.out.println(passed ? "PASSED" : "FAILED");
+        }
+        finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            server.close();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Timed out waiting for " + what);
+            }
+            Thread.sleep(100);
+        }
+    }
+
+    private static long total(List<String> urls, String field, String secret) {
+        long total = 0;
+        for (String url : urls) {
+            try {
+                total += Long.parseLong(call(url + "/cluster/status", null, secret).get(field));
+            }
+            catch (IOException e) {
+                // The node isn't up yet
+                return -1;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Sends a GET request, or a POST request with the body if there is one, as a node of the cluster and reads
+     * the fields of the JSON object returned.
+     */
+    private static Map<String, String> call(String url, String body, String secret) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty(ClusterNode.SECRET_HEADER, secret);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException(url + " answered with HTTP " + connection.getResponseCode());
+        }
+        Map<String, String> fields = new HashMap<>();
+        try (InputStream in = connection.getInputStream()) {
+            JsonReader reader = JsonReader.of(Okio.buffer(Okio.source(in)));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                fields.put(reader.nextName(), reader.nextString());
+            }
+            reader.endObject();
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,576 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonReader;
+import okio.Buffer;
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import javax.net.ssl.SSLServerSocketFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.GCM_ELEMENT_NAME;
+import static org.codepond.fcmappserver.CcsClient.GCM_NAMESPACE;
+import static org.codepond.fcmappserver.CcsClient.MAX_IN_FLIGHT_MESSAGES;
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Local stand-in for CCS to load test {@link CcsClient} against. It speaks the part of
+ * XMPP the client uses: stream setup, SASL PLAIN, resource binding and messages carrying
+ * a gcm element.
+ * <br>
+ * Downstream messages are acked, or nacked at the configured rate, after the configured
+ * latency. Like CCS, a connection is closed with a policy-violation stream error if it
+ * has more than {@link CcsClient#MAX_IN_FLIGHT_MESSAGES} unacknowledged messages.
+ * Upstream messages and CONNECTION_DRAINING are sent at the configured rates.
+ * <br>
+ * Settings apply to connections opened after they are changed. With TLS the server
+ * socket uses the JVM's default key store, see the javax.net.ssl.keyStore property.
+ */
+public class FakeCcsServer implements Closeable {
+
+    private static final String STREAM_NAMESPACE = "http://etherx.jabber.org/streams";
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+    private static final String SESSION_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-session";
+    private static final String SERVICE_NAME = "gcm.googleapis.com";
+
+    private final ServerSocket mServerSocket;
+    private final ScheduledExecutorService mScheduler;
+    private final List<Session> mSessions = new CopyOnWriteArrayList<>();
+    private final AtomicInteger mNextSessionId = new AtomicInteger();
+    private final AtomicLong mNextUpstreamId = new AtomicLong();
+    private volatile boolean mClosed;
+
+    private volatile String mServerKey;
+    private volatile long mAckLatencyMillis;
+    private volatile long mAckJitterMillis;
+    private volatile double mNackRate;
+    private volatile String mNackError = "SERVICE_UNAVAILABLE";
+    private volatile double mUpstreamRate;
+    private volatile long mDrainIntervalMillis;
+    private volatile long mDrainGraceMillis = 1000;
+
+    private final LongAdder mReceived = new LongAdder();
+    private final LongAdder mAcked = new LongAdder();
+    private final LongAdder mNacked = new LongAdder();
+    private final LongAdder mUpstreamSent = new LongAdder();
+    private final LongAdder mUpstreamAcked = new LongAdder();
+    private final LongAdder mDrained = new LongAdder();
+    private final LongAdder mWindowViolations = new LongAdder();
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     * @param tls whether connections are TLS from the start, as they are with CCS
+     */
+    public FakeCcsServer(int port, boolean tls) throws IOException {
+        mServerSocket = tls ? SSLServerSocketFactory.getDefault().createServerSocket(port) : new ServerSocket(port);
+        mScheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "fake-ccs-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Rejects logins with another password. Any password is accepted if not set.
+     */
+    public void setServerKey(String serverKey) {
+        mServerKey = serverKey;
+    }
+
+    /**
+     * Delays every ack or nack by the latency plus a random amount up to the jitter.
+     */
+    public void setAckLatency(long latency, long jitter, TimeUnit unit) {
+        mAckLatencyMillis = unit.toMillis(latency);
+        mAckJitterMillis = unit.toMillis(jitter);
+    }
+
+    /**
+     * Nacks the given fraction of downstream messages with the error code.
+     */
+    public void setNackRate(double rate, String error) {
+        mNackRate = rate;
+        mNackError = error;
+    }
+
+    /**
+     * Number of upstream messages sent per second on each connection.
+     */
+    public void setUpstreamRate(double messagesPerSecond) {
+        mUpstreamRate = messagesPerSecond;
+    }
+
+    /**
+     * Sends CONNECTION_DRAINING on each connection after about the given interval, and
+     * closes the connection once the grace period has passed.
+     *
+     * @param interval average lifetime of a connection, or 0 to never drain
+     */
+    public void setDrainInterval(long interval, long grace, TimeUnit unit) {
+        mDrainIntervalMillis = unit.toMillis(interval);
+        mDrainGraceMillis = unit.toMillis(grace);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::accept, "fake-ccs-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void accept() {
+        while (!mClosed) {
+            try {
+                Socket socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket, mNextSessionId.getAndIncrement());
+                mSessions.add(session);
+                Thread thread = new Thread(session, "fake-ccs-" + session.mId);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException e) {
+                if (!mClosed) {
+                    logger.log(Level.WARNING, "Fake CCS failed to accept a connection", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+        for (Session session : mSessions) {
+            session.close();
+        }
+        mScheduler.shutdownNow();
+    }
+
+    public int getConnectionCount() {
+        return mSessions.size();
+    }
+
+    /**
+     * Sends registrations spread over the connections that completed the handshake, the
+     * way CCS delivers upstream messages to any connection of the sender ID.
+     *
+     * @return the number of registrations sent, 0 if no connection is open
+     */
+    public int sendUpstream(int count) {
+        List<Session> sessions = new ArrayList<>();
+        for (Session session : mSessions) {
+            if (session.mOpen) {
+                sessions.add(session);
+            }
+        }
+        if (sessions.isEmpty()) {
+            return 0;
+        }
+        for (int i = 0; i < count; i++) {
+            sessions.get(i % sessions.size()).sendUpstream();
+        }
+        return count;
+    }
+
+    public long getReceivedCount() {
+        return mReceived.sum();
+    }
+
+    public long getAckedCount() {
+        return mAcked.sum();
+    }
+
+    public long getNackedCount() {
+        return mNacked.sum();
+    }
+
+    public long getUpstreamSentCount() {
+        return mUpstreamSent.sum();
+    }
+
+    /**
+     * Number of upstream messages the client acked.
+     */
+    public long getUpstreamAckedCount() {
+        return mUpstreamAcked.sum();
+    }
+
+    public long getDrainedCount() {
+        return mDrained.sum();
+    }
+
+    /**
+     * Number of connections closed for exceeding the in-flight limit.
+     */
+    public long getWindowViolationCount() {
+        return mWindowViolations.sum();
+    }
+
+    private static XmlPullParser newParser(Reader reader) throws XmlPullParserException {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(reader);
+        return parser;
+    }
+
+    /**
+     * Advances to the next element start at the given depth.
+     *
+     * @return the element's name, or null at the end of the stream
+     */
+    private static String nextElement(XmlPullParser parser, int depth) throws XmlPullParserException, IOException {
+        while (true) {
+            int event = parser.next();
+            if (event == XmlPullParser.END_DOCUMENT || (event == XmlPullParser.END_TAG && parser.getDepth() < depth)) {
+                return null;
+            }
+            if (event == XmlPullParser.START_TAG && parser.getDepth() == depth) {
+                return parser.getName();
+            }
+        }
+    }
+
+    /**
+     * Skips the children of the current element up to its end tag.
+     */
+    private static void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        while (parser.next() != XmlPullParser.END_TAG || parser.getDepth() > depth) {
+            if (parser.getEventType() == XmlPullParser.END_DOCUMENT) {
+                throw new IOException("Stream ended within " + parser.getName());
+            }
+        }
+    }
+
+    /**
+     * One client connection, read on its own thread and written to from the scheduler.
+     */
+    private final class Session implements Runnable {
+        final int mId;
+        private final Socket mSocket;
+        private final Writer mOut;
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final AtomicBoolean mClosing = new AtomicBoolean();
+        private final List<ScheduledFuture<?>> mTasks = new ArrayList<>();
+        private String mJid;
+        volatile boolean mOpen;
+
+        Session(Socket socket, int id) throws IOException {
+            mSocket = socket;
+            mId = id;
+            mOut = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void run() {
+            try {
+                Reader in = new BufferedReader(new InputStreamReader(mSocket.getInputStream(), StandardCharsets.UTF_8));
+                if (!authenticate(newParser(in))) {
+                    return;
+                }
+                // The client opens a new stream after authenticating
+                XmlPullParser parser = newParser(in);
+                openStream(parser, "<bind xmlns=\"" + BIND_NAMESPACE + "\"/><session xmlns=\"" + SESSION_NAMESPACE + "\"/>");
+                mOpen = true;
+                startTasks();
+                for (String name = nextElement(parser, 2); name != null; name = nextElement(parser, 2)) {
+                    if ("message".equals(name)) {
+                        onMessage(parser);
+                    }
+                    else if ("iq".equals(name)) {
+                        onIq(parser);
+                    }
+                    else {
+                        skip(parser);
+                    }
+                }
+            }
+            catch (IOException | XmlPullParserException e) {
+                if (!mClosing.get()) {
+                    logger.log(Level.FINE, "Fake CCS connection " + mId + " failed", e);
+                }
+            }
+            finally {
+                close();
+            }
+        }
+
+        private void openStream(XmlPullParser parser, String features) throws IOException, XmlPullParserException {
+            if (!"stream".equals(nextElement(parser, 1)) || !STREAM_NAMESPACE.equals(parser.getNamespace())) {
+                throw new IOException("Expected a stream");
+            }
+            write("<?xml version='1.0'?><stream:stream xmlns='jabber:client' xmlns:stream='" + STREAM_NAMESPACE
+                    + "' id='" + Integer.toHexString(ThreadLocalRandom.current().nextInt()) + "' from='" + SERVICE_NAME
+                    + "' version='1.0'><stream:features>" + features + "</stream:features>");
+        }
+
+        private boolean authenticate(XmlPullParser parser) throws IOException, XmlPullParserException {
+            openStream(parser, "<mechanisms xmlns=\"" + SASL_NAMESPACE + "\"><mechanism>PLAIN</mechanism></mechanisms>");
+            if (!"auth".equals(nextElement(parser, 2)) || !"PLAIN".equals(parser.getAttributeValue(null, "mechanism"))) {
+                throw new IOException("Expected PLAIN authentication");
+            }
+            // authzid NUL authcid NUL password
+            String[] credentials = new String(StringUtils.decodeBase64(parser.nextText()), StandardCharsets.UTF_8)
+                    .split("\u0000", -1);
+            String serverKey = mServerKey;
+            if (credentials.length != 3 || (serverKey != null && !serverKey.equals(credentials[2]))) {
+                write("<failure xmlns=\"" + SASL_NAMESPACE + "\"><not-authorized/></failure>");
+                return false;
+            }
+            mJid = credentials[1];
+            write("<success xmlns=\"" + SASL_NAMESPACE + "\"/>");
+            return true;
+        }
+
+        private void onIq(XmlPullParser parser) throws IOException, XmlPullParserException {
+            String id = parser.getAttributeValue(null, "id");
+            String type = parser.getAttributeValue(null, "type");
+            String resource = null;
+            boolean bind = false;
+            for (String name = nextElement(parser, 3); name != null; name = nextElement(parser, 3)) {
+                if ("bind".equals(name) && BIND_NAMESPACE.equals(parser.getNamespace())) {
+                    bind = true;
+                    for (String child = nextElement(parser, 4); child != null; child = nextElement(parser, 4)) {
+                        if ("resource".equals(child)) {
+                            resource = parser.nextText();
+                        }
+                        else {
+                            skip(parser);
+                        }
+                    }
+                }
+                else {
+                    skip(parser);
+                }
+            }
+            if (id == null || !("get".equals(type) || "set".equals(type))) {
+                return;
+            }
+            if (bind) {
+                write("<iq type='result' id='" + StringUtils.escapeForXML(id) + "'><bind xmlns='" + BIND_NAMESPACE
+                        + "'><jid>" + StringUtils.escapeForXML(mJid + "/" + (resource != null ? resource : "fake"))
+                        + "</jid></bind></iq>");
+            }
+            else {
+                write("<iq type='result' id='" + StringUtils.escapeForXML(id) + "'/>");
+            }
+        }
+
+        private void onMessage(XmlPullParser parser) throws IOException, XmlPullParserException {
+            String json = null;
+            for (String name = nextElement(parser, 3); name != null; name = nextElement(parser, 3)) {
+                if (GCM_ELEMENT_NAME.equals(name) && GCM_NAMESPACE.equals(parser.getNamespace())) {
+                    json = parser.nextText();
+                }
+                else {
+                    skip(parser);
+                }
+            }
+            if (json != null) {
+                onPayload(json);
+            }
+        }
+
+        private void onPayload(String json) throws IOException {
+            String messageType = null;
+            String messageId = null;
+            String to = null;
+            JsonReader reader = JsonReader.of(new Buffer().writeUtf8(json));
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "message_type":
+                        messageType = reader.nextString();
+                        break;
+                    case "message_id":
+                        messageId = reader.nextString();
+                        break;
+                    case "to":
+                        to = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            if ("ack".equals(messageType)) {
+                mUpstreamAcked.increment();
+                return;
+            }
+            mReceived.increment();
+            if (mInFlight.incrementAndGet() > MAX_IN_FLIGHT_MESSAGES) {
+                mWindowViolations.increment();
+                logger.log(Level.WARNING, "Fake CCS connection " + mId + " exceeded " + MAX_IN_FLIGHT_MESSAGES
+                        + " unacknowledged messages");
+                write("<stream:error><policy-violation xmlns='urn:ietf:params:xml:ns:xmpp-streams'/></stream:error>");
+                close();
+                return;
+            }
+            boolean nack = ThreadLocalRandom.current().nextDouble() < mNackRate;
+            String response = nack ? nack(messageId, to, mNackError) : ack(messageId, to);
+            long delay = mAckLatencyMillis;
+            if (mAckJitterMillis > 0) {
+                delay += ThreadLocalRandom.current().nextLong(mAckJitterMillis + 1);
+            }
+            if (delay == 0) {
+                respond(response, nack);
+            }
+            else {
+                mScheduler.schedule(() -> respond(response, nack), delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void respond(String response, boolean nack) {
+            // Free the slot first, the client sends its next message as soon as it sees the response
+            mInFlight.decrementAndGet();
+            if (nack) {
+                mNacked.increment();
+            }
+            else {
+                mAcked.increment();
+            }
+            send(response);
+        }
+
+        private String ack(String messageId, String to) {
+            StringBuilder json = new StringBuilder("{\"message_type\":\"ack\",\"from\":");
+            WireTracer.appendJsonString(json, String.valueOf(to));
+            json.append(",\"message_id\":");
+            WireTracer.appendJsonString(json, String.valueOf(messageId));
+            return json.append('}').toString();
+        }
+
+        private String nack(String messageId, String to, String error) {
+            StringBuilder json = new StringBuilder("{\"message_type\":\"nack\",\"from\":");
+            WireTracer.appendJsonString(json, String.valueOf(to));
+            json.append(",\"message_id\":");
+            WireTracer.appendJsonString(json, String.valueOf(messageId));
+            json.append(",\"error\":");
+            WireTracer.appendJsonString(json, error);
+            return json.append(",\"error_description\":\"Fake CCS\"}").toString();
+        }
+
+        private void startTasks() {
+            double upstreamRate = mUpstreamRate;
+            long drainInterval = mDrainIntervalMillis;
+            synchronized (mTasks) {
+                if (upstreamRate > 0) {
+                    long period = (long) (TimeUnit.SECONDS.toMicros(1) / upstreamRate);
+                    mTasks.add(mScheduler.scheduleAtFixedRate(this::sendUpstream, period, Math.max(1, period),
+                            TimeUnit.MICROSECONDS));
+                }
+                if (drainInterval > 0) {
+                    long lifetime = drainInterval / 2 + ThreadLocalRandom.current().nextLong(drainInterval + 1);
+                    mTasks.add(mScheduler.schedule(this::drain, lifetime, TimeUnit.MILLISECONDS));
+                }
+            }
+        }
+
+        /**
+         * Sends a registration, which the client's {@link RegisterProcessor} handles.
+         */
+        void sendUpstream() {
+            long id = mNextUpstreamId.incrementAndGet();
+            mUpstreamSent.increment();
+            send("{\"category\":\"org.codepond.fcmapp\",\"data\":{\"action\":\"org.codepond.fcmappserver.REGISTER\","
+                    + "\"account\":\"loadtest-" + (id % 1000) + "\"},\"message_id\":\"up-" + id
+                    + "\",\"from\":\"fake-token-" + id + "\"}");
+        }
+
+        private void drain() {
+            mDrained.increment();
+            send("{\"message_type\":\"control\",\"control_type\":\"CONNECTION_DRAINING\"}");
+            synchronized (mTasks) {
+                mTasks.add(mScheduler.schedule(this::close, mDrainGraceMillis, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        private void send(String json) {
+            try {
+                write("<message><" + GCM_ELEMENT_NAME + " xmlns=\"" + GCM_NAMESPACE + "\">"
+                        + StringUtils.escapeForXML(json) + "</" + GCM_ELEMENT_NAME + "></message>");
+            }
+            catch (IOException e) {
+                close();
+            }
+        }
+
+        private void write(String xml) throws IOException {
+            synchronized (mOut) {
+                mOut.write(xml);
+                mOut.flush();
+            }
+        }
+
+        void close() {
+            if (!mClosing.compareAndSet(false, true)) {
+                return;
+            }
+            mSessions.remove(this);
+            synchronized (mTasks) {
+                for (ScheduledFuture<?> task : mTasks) {
+                    task.cancel(false);
+                }
+            }
+            try {
+                write("</stream:stream>");
+            }
+            catch (IOException ignored) {
+                // The client is gone already
+            }
+            try {
+                mSocket.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonReader;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the FCM device group API, see {@link DeviceGroupClient}. Groups
+ * are kept in memory and follow the API's rules: at most
+ * {@link DeviceGroupClient#MAX_GROUP_SIZE} tokens per group, and a group is deleted
+ * when its last token is removed.
+ */
+public class FakeDeviceGroupServer {
+
+    private static final class Group {
+        final String mKey;
+        final Set<String> mTokens = new HashSet<>();
+
+        Group(String key) {
+            mKey = key;
+        }
+    }
+
+    private final HttpServer mServer;
+    private final Map<String, Group> mGroups = new HashMap<>();
+    private final AtomicLong mNextKey = new AtomicLong();
+    private final AtomicLong mRequests = new AtomicLong();
+
+    /**
+     * @param port port to listen on, or 0 for any free port
+     */
+    public FakeDeviceGroupServer(int port) throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(port), 0);
+        mServer.createContext("/fcm/notification", exchange -> {
+            try {
+                handle(exchange);
+            }
+            finally {
+                exchange.close();
+            }
+        });
+    }
+
+    public void start() {
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+    }
+
+    /**
+     * URL to pass to {@link DeviceGroupClient}.
+     */
+    public String getUrl() {
+        return "http://localhost:" + mServer.getAddress().getPort() + "/fcm/notification";
+    }
+
+    public long getRequestCount() {
+        return mRequests.get();
+    }
+
+    /**
+     * @return the group's tokens or null if there is no such group
+     */
+    public synchronized Set<String> getMembers(String notificationKeyName) {
+        Group group = mGroups.get(notificationKeyName);
+        return group != null ? new HashSet<>(group.mTokens) : null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mRequests.incrementAndGet();
+        if (exchange.getRequestHeaders().getFirst("Authorization") == null
+                || exchange.getRequestHeaders().getFirst("project_id") == null) {
+            respond(exchange, 401, "error", "Unauthorized");
+            return;
+        }
+        if ("GET".equals(exchange.getRequestMethod())) {
+            String query = exchange.getRequestURI().getRawQuery();
+            String prefix = "notification_key_name=";
+            String name = query != null && query.startsWith(prefix)
+                    ? URLDecoder.decode(query.substring(prefix.length()), "UTF-8") : null;
+            Group group;
+            synchronized (this) {
+                group = name != null ? mGroups.get(name) : null;
+            }
+            if (group == null) {
+                respond(exchange, 400, "error", "notification_key not found");
+            }
+            else {
+                respond(exchange, 200, "notification_key", group.mKey);
+            }
+            return;
+        }
+
+        String operation = null;
+        String name = null;
+        String key = null;
+        List<String> tokens = new ArrayList<>();
+        JsonReader reader = JsonReader.of(Okio.buffer(Okio.source(exchange.getRequestBody())));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "operation":
+                    operation = reader.nextString();
+                    break;
+                case "notification_key_name":
+                    name = reader.nextString();
+                    break;
+                case "notification_key":
+                    key = reader.nextString();
+                    break;
+                case "registration_ids":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        tokens.add(reader.nextString());
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        String error;
+        Group group;
+        synchronized (this) {
+            group = name != null ? mGroups.get(name) : null;
+            error = apply(operation, name, key, tokens, group);
+            group = name != null ? mGroups.get(name) : null;
+        }
+        if (error != null) {
+            respond(exchange, 400, "error", error);
+        }
+        else {
+            respond(exchange, 200, "notification_key", group != null ? group.mKey : key);
+        }
+    }
+
+    /**
+     * @return the error or null if the operation succeeded
+     */
+    private String apply(String operation, String name, String key, List<String> tokens, Group group) {
+        if (name == null || tokens.isEmpty()) {
+            return "notification_key_name and registration_ids are required";
+        }
+        if ("create".equals(operation)) {
+            if (group != null) {
+                return "notification_key already exists";
+            }
+            if (tokens.size() > DeviceGroupClient.MAX_GROUP_SIZE) {
+                return "maximum number of members exceeded";
+            }
+            group = new Group("fake-notification-key-" + mNextKey.incrementAndGet());
+            group.mTokens.addAll(tokens);
+            mGroups.put(name, group);
+            return null;
+        }
+        if (group == null || !group.mKey.equals(key)) {
+            return "notification_key not found";
+        }
+        if ("add".equals(operation)) {
+            Set<String> members = new HashSet<>(group.mTokens);
+            members.addAll(tokens);
+            if (members.size() > DeviceGroupClient.MAX_GROUP_SIZE) {
+                return "maximum number of members exceeded";
+            }
+            group.mTokens.addAll(tokens);
+            return null;
+        }
+        if ("remove".equals(operation)) {
+            group.mTokens.removeAll(tokens);
+            if (group.mTokens.isEmpty()) {
+                mGroups.remove(name);
+            }
+            return null;
+        }
+        return "unknown operation " + operation;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String name, String value) throws IOException {
+        StringBuilder json = new StringBuilder("{\"").append(name).append("\":");
+        WireTracer.appendJsonString(json, value);
+        byte[] body = json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends downstream messages through {@link CcsClient} as fast as the in-flight windows
+ * allow and reports the sustained throughput and the latency from {@link CcsClient#sendAsync}
+ * to the final ack or nack.
+ * <br>
+ * Arguments are name=value pairs:
+ * <ul>
+ *     <li>messages: number of messages to send, default 1000000</li>
+ *     <li>connections: number of connections the client opens, default 4</li>
+ *     <li>journal: directory of an {@link OutboundJournal} the client records messages in, default none</li>
+ *     <li>lane: the {@link Lane} the messages are sent in, default NORMAL</li>
+ *     <li>backlog: messages kept outstanding as a multiple of the combined window capacity, default 2</li>
+ *     <li>urgentInterval: milliseconds between high priority messages sent alongside the load,
+ *     whose latency is reported separately, default 0 for none</li>
+ *     <li>host, port, tls: server to test against. If no host is given a {@link FakeCcsServer}
+ *     is started in this process, configured by the arguments below</li>
+ *     <li>latency, jitter: ack delay in milliseconds, default 5 and 5</li>
+ *     <li>nackRate, nackError: fraction of messages nacked and the error, default 0 and SERVICE_UNAVAILABLE</li>
+ *     <li>upstreamRate: upstream messages per second and connection, default 0</li>
+ *     <li>drainInterval: average seconds until a connection is drained, default 0 for never</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+    public static void main(String[] args) throws Exception {
+        Properties options = new Properties();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            options.setProperty(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        int messages = Integer.parseInt(options.getProperty("messages", "1000000"));
+        int connections = Integer.parseInt(options.getProperty("connections", "4"));
+
+        String host = options.getProperty("host", "");
+        int port = Integer.parseInt(options.getProperty("port", "0"));
+        boolean tls = Boolean.parseBoolean(options.getProperty("tls", "false"));
+        FakeCcsServer server = null;
+        if (host.isEmpty()) {
+            server = new FakeCcsServer(port, tls);
+            server.setAckLatency(Long.parseLong(options.getProperty("latency", "5")),
+                    Long.parseLong(options.getProperty("jitter", "5")), TimeUnit.MILLISECONDS);
+            server.setNackRate(Double.parseDouble(options.getProperty("nackRate", "0")),
+                    options.getProperty("nackError", "SERVICE_UNAVAILABLE"));
+            server.setUpstreamRate(Double.parseDouble(options.getProperty("upstreamRate", "0")));
+            server.setDrainInterval(Long.parseLong(options.getProperty("drainInterval", "0")), 1, TimeUnit.SECONDS);
+            server.start();
+            host = "localhost";
+            port = server.getPort();
+        }
+
+        CcsClient client = CcsClient.prepareClient("loadtest", "loadtest", false);
+        client.setServer(host, port, tls);
+        client.setConnectionCount(connections);
+        String journal = options.getProperty("journal", "");
+        if (!journal.isEmpty()) {
+            client.setOutboundJournal(new OutboundJournal(new File(journal)));
+        }
+        client.connect();
+
+        LoadGenerator generator = new LoadGenerator(client, Lane.valueOf(options.getProperty("lane", "NORMAL")),
+                Integer.parseInt(options.getProperty("backlog", "2")),
+                Long.parseLong(options.getProperty("urgentInterval", "0")));
+        generator.run(messages);
+        generator.report(server);
+        if (server != null) {
+            server.close();
+        }
+        // Smack's threads keep the JVM alive
+        System.exit(0);
+    }
+
+    private final CcsClient mClient;
+    private final Lane mLane;
+    private final int mBacklog;
+    private final long mUrgentIntervalMillis;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final LatencyHistogram mUrgentLatency = new LatencyHistogram();
+    private final LongAdder mAcked = new LongAdder();
+    private final LongAdder mNacked = new LongAdder();
+    private final LongAdder mFailed = new LongAdder();
+    private long mElapsedNanos;
+
+    LoadGenerator(CcsClient client, Lane lane, int backlog, long urgentIntervalMillis) {
+        mClient = client;
+        mLane = lane;
+        mBacklog = backlog;
+        mUrgentIntervalMillis = urgentIntervalMillis;
+    }
+
+    /**
+     * Sends the messages, keeping a multiple of the combined window capacity outstanding so
+     * the windows never run empty, and prints the throughput every second.
+     */
+    void run(int messages) throws InterruptedException {
+        int outstanding = mBacklog * mClient.getWindowCapacity();
+        Semaphore permits = new Semaphore(outstanding);
+        Thread reporter = new Thread(this::reportProgress, "loadtest-reporter");
+        reporter.setDaemon(true);
+        Thread urgent = new Thread(this::sendUrgent, "loadtest-urgent");
+        urgent.setDaemon(true);
+        long start = System.nanoTime();
+        reporter.start();
+        if (mUrgentIntervalMillis > 0) {
+            urgent.start();
+        }
+        for (int i = 0; i < messages; i++) {
+            permits.acquire();
+            DownstreamMessage.Request request = new DownstreamMessage.Request("fake-token-" + (i & 0xffff),
+                    mClient.getMessageIdGenerator().nextId(), Collections.singletonMap("message", "load test " + i));
+            long sent = System.nanoTime();
+            mClient.sendAsync(request, mLane).whenComplete((response, error) -> {
+                mLatency.record(System.nanoTime() - sent, TimeUnit.NANOSECONDS);
+                if (error != null) {
+                    mFailed.increment();
+                }
+                else if (response.getError() != null) {
+                    mNacked.increment();
+                }
+                else {
+                    mAcked.increment();
+                }
+                permits.release();
+            });
+        }
+        permits.acquire(outstanding);
+        mElapsedNanos = System.nanoTime() - start;
+        reporter.interrupt();
+        urgent.interrupt();
+    }
+
+    /**
+     * Sends a high priority message at a fixed interval and records its latency.
+     */
+    private void sendUrgent() {
+        try {
+            for (int i = 0; ; i++) {
+                TimeUnit.MILLISECONDS.sleep(mUrgentIntervalMillis);
+                DownstreamMessage.Request request = new DownstreamMessage.Request("urgent-token-" + i,
+                        mClient.getMessageIdGenerator().nextId(), Collections.singletonMap("message", "urgent " + i),
+                        null, DownstreamMessage.Request.PRIORITY_HIGH, 0);
+                long sent = System.nanoTime();
+                mClient.sendAsync(request).whenComplete((response, error) ->
+                        mUrgentLatency.record(System.nanoTime() - sent, TimeUnit.NANOSECONDS));
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+
+    private void reportProgress() {
+        long last = 0;
+        try {
+            while (true) {
+                TimeUnit.SECONDS.sleep(1);
+                long completed = mLatency.getCount();
+                System.out.printf("%,d msgs/sec, %,d completed, %d connections%n",
+                        completed - last, completed, mClient.getStats().getConnected());
+                last = completed;
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+
+    void report(FakeCcsServer server) {
+        double seconds = mElapsedNanos / 1e9;
+        System.out.printf("%n%,d messages in %.1f s: %,.0f msgs/sec%n", mLatency.getCount(), seconds,
+                mLatency.getCount() / seconds);
+        System.out.printf("acked %,d, nacked %,d, failed %,d%n", mAcked.sum(), mNacked.sum(), mFailed.sum());
+        System.out.printf("latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f%n",
+                millis(mLatency.getPercentileMicros(50)), millis(mLatency.getPercentileMicros(90)),
+                millis(mLatency.getPercentileMicros(99)), millis(mLatency.getPercentileMicros(99.9)),
+                millis(mLatency.getMaxMicros()));
+        if (mUrgentLatency.getCount() > 0) {
+            System.out.printf("urgent latency ms (%,d messages): p50 %.2f, p90 %.2f, p99 %.2f, max %.2f%n",
+                    mUrgentLatency.getCount(), millis(mUrgentLatency.getPercentileMicros(50)),
+                    millis(mUrgentLatency.getPercentileMicros(90)), millis(mUrgentLatency.getPercentileMicros(99)),
+                    millis(mUrgentLatency.getMaxMicros()));
+        }
+        if (server != null) {
+            System.out.printf("server: received %,d, acked %,d, nacked %,d, upstream sent %,d, upstream acked %,d, "
+                            + "drained %,d, window violations %,d%n",
+                    server.getReceivedCount(), server.getAckedCount(), server.getNackedCount(),
+                    server.getUpstreamSentCount(), server.getUpstreamAckedCount(), server.getDrainedCount(),
+                    server.getWindowViolationCount());
+        }
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
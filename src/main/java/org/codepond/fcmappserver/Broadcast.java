@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a message sent to many recipients by the {@link BroadcastEngine}.
+ */
+public class Broadcast {
+
+    private final String mId;
+    private final long mRecipients;
+    private final long mStartTime = System.nanoTime();
+    private final AtomicLong mDispatched = new AtomicLong();
+    private final AtomicLong mAcked = new AtomicLong();
+    private final AtomicLong mNacked = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final CompletableFuture<Broadcast> mCompletion = new CompletableFuture<>();
+    private volatile boolean mCancelled;
+    private volatile long mEndTime;
+
+    Broadcast(String id, long recipients) {
+        mId = id;
+        mRecipients = recipients;
+    }
+
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * Number of recipients when the broadcast started. Registrations added or removed
+     * while it runs may or may not be included.
+     */
+    public long getRecipients() {
+        return mRecipients;
+    }
+
+    /**
+     * Number of messages handed to the client so far.
+     */
+    public long getDispatched() {
+        return mDispatched.get();
+    }
+
+    public long getAcked() {
+        return mAcked.get();
+    }
+
+    public long getNacked() {
+        return mNacked.get();
+    }
+
+    /**
+     * Number of messages that were neither acked nor nacked, e.g. because their connection was lost.
+     */
+    public long getFailed() {
+        return mFailed.get();
+    }
+
+    public boolean isDone() {
+        return mCompletion.isDone();
+    }
+
+    /**
+     * Completes once every dispatched message was acked, nacked or failed.
+     */
+    public CompletableFuture<Broadcast> getCompletion() {
+        return mCompletion;
+    }
+
+    /**
+     * Stops dispatching further messages. Messages already dispatched are still tracked.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Time from start to completion, or up to now if still running.
+     */
+    public long getElapsedMillis() {
+        long end = mEndTime != 0 ? mEndTime : System.nanoTime();
+        return TimeUnit.NANOSECONDS.toMillis(end - mStartTime);
+    }
+
+    void onDispatched() {
+        mDispatched.incrementAndGet();
+    }
+
+    void onAcked() {
+        mAcked.incrementAndGet();
+    }
+
+    void onNacked() {
+        mNacked.incrementAndGet();
+    }
+
+    void onFailed() {
+        mFailed.incrementAndGet();
+    }
+
+    void complete() {
+        mEndTime = System.nanoTime();
+        mCompletion.complete(this);
+    }
+
+    @Override
+    public String toString() {
+        return "Broadcast " + mId + ": recipients=" + mRecipients + " dispatched=" + getDispatched()
+                + " acked=" + getAcked() + " nacked=" + getNacked() + " failed=" + getFailed()
+                + " elapsed=" + getElapsedMillis() + "ms" + (mCancelled ? " (cancelled)" : "");
+    }
+}
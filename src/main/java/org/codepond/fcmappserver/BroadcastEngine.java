@@ -0,0 +1,194 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Sends the same data message to all registered devices or all devices of an account.
+ * <br>
+ * Recipients are streamed from the {@link RegistrationStore} in pages, so a broadcast
+ * never holds more than a page of tokens plus the outstanding messages in memory.
+ * Messages go through {@link CcsClient#sendAsync(String, String, MessageTemplate)}, which
+ * spreads them across the connections, with the payload encoded once per broadcast. They are
+ * sent in the {@link Lane#BULK bulk lane}, so other messages don't wait for a broadcast.
+ * The number of outstanding messages per broadcast is capped at twice the combined in-flight
+ * window of all connections, which keeps every window full without piling up messages in the
+ * send queues.
+ */
+public class BroadcastEngine {
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private final CcsClient mClient;
+    private final int mPageSize;
+    private final ExecutorService mExecutor;
+    private volatile String mBroadcastTopic;
+
+    public BroadcastEngine(CcsClient client) {
+        this(client, DEFAULT_PAGE_SIZE);
+    }
+
+    public BroadcastEngine(CcsClient client, int pageSize) {
+        mClient = client;
+        mPageSize = pageSize;
+        AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "broadcast-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Makes {@link #broadcastToAll} send a single message to the topic instead of a message
+     * to every token. Only use it if every app instance subscribes to the topic.
+     *
+     * @param topic the topic's name without the /topics/ prefix, or null to send to every token
+     */
+    public void setBroadcastTopic(String topic) {
+        mBroadcastTopic = topic;
+    }
+
+    /**
+     * @return the topic {@link #broadcastToAll} sends to or null if it sends to every token
+     */
+    public String getBroadcastTopic() {
+        return mBroadcastTopic;
+    }
+
+    /**
+     * Sends the data to every registered token, or to the broadcast topic if one is set.
+     */
+    public Broadcast broadcastToAll(Map<String, String> data) {
+        String topic = mBroadcastTopic;
+        if (topic != null) {
+            return broadcast(Collections.singleton("/topics/" + topic).iterator(), 1, data);
+        }
+        RegistrationStore store = mClient.getRegistrationStore();
+        return broadcast(store.registrationIds(), store.size(), data);
+    }
+
+    /**
+     * Sends the data to every token of the account. If the client has a {@link DeviceGroupManager}
+     * and the account's group is up to date, a single message goes to the group's notification key.
+     */
+    public Broadcast broadcastToAccount(String account, Map<String, String> data) {
+        DeviceGroupManager deviceGroups = mClient.getDeviceGroupManager();
+        String notificationKey = deviceGroups != null ? deviceGroups.getNotificationKey(account) : null;
+        if (notificationKey != null) {
+            return broadcast(Collections.singleton(notificationKey).iterator(), 1, data);
+        }
+        Set<String> tokens = mClient.getRegistrationStore().getAllRegistrationIdsForAccount(account);
+        if (tokens == null) {
+            tokens = Collections.emptySet();
+        }
+        return broadcast(tokens.iterator(), tokens.size(), data);
+    }
+
+    /**
+     * Sends the data to every recipient the iterator returns.
+     *
+     * @param recipients registration tokens, notification keys or topics
+     * @param count expected number of recipients, only used for progress reporting
+     */
+    public Broadcast broadcast(Iterator<String> recipients, long count, Map<String, String> data) {
+        Broadcast broadcast = new Broadcast(mClient.getMessageIdGenerator().nextId(), count);
+        mExecutor.execute(() -> run(broadcast, recipients, data));
+        return broadcast;
+    }
+
+    private void run(Broadcast broadcast, Iterator<String> recipients, Map<String, String> data) {
+        int maxOutstanding = Math.max(mClient.getWindowCapacity() * 2, CcsClient.MAX_IN_FLIGHT_MESSAGES);
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        // The payload is the same for every recipient, it's encoded once
+        MessageTemplate template = new MessageTemplate(data);
+        String[] page = new String[mPageSize];
+        try {
+            while (!broadcast.isCancelled()) {
+                int size = 0;
+                while (size < page.length && recipients.hasNext()) {
+                    page[size++] = recipients.next();
+                }
+                if (size == 0) {
+                    break;
+                }
+                for (int i = 0; i < size && !broadcast.isCancelled(); i++) {
+                    outstanding.acquire();
+                    broadcast.onDispatched();
+                    String messageId = mClient.getMessageIdGenerator().nextId();
+                    CompletableFuture<DownstreamMessage.Response> future;
+                    try {
+                        future = mClient.sendAsync(page[i], messageId, template, Lane.BULK);
+                    }
+                    catch (RuntimeException e) {
+                        broadcast.onFailed();
+                        outstanding.release();
+                        throw e;
+                    }
+                    future.whenComplete((response, error) -> {
+                        if (error != null) {
+                            broadcast.onFailed();
+                        }
+                        else if ("ack".equals(response.getMessageType())) {
+                            broadcast.onAcked();
+                        }
+                        else {
+                            broadcast.onNacked();
+                        }
+                        outstanding.release();
+                    });
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            // Shutting down, don't wait for the outstanding messages
+            Thread.currentThread().interrupt();
+            broadcast.cancel();
+            broadcast.complete();
+            return;
+        }
+        catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Broadcast " + broadcast.getId() + " failed", e);
+            broadcast.cancel();
+        }
+        // Wait for the outstanding messages to be acked or nacked, also after a failure
+        outstanding.acquireUninterruptibly(maxOutstanding);
+        broadcast.complete();
+        logger.log(Level.INFO, broadcast.toString());
+    }
+
+    /**
+     * Stops the broadcasts that are still running.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -19,19 +19,13 @@
  */
 package org.codepond.fcmappserver;
 
-import com.squareup.moshi.JsonAdapter;
-import com.squareup.moshi.Moshi;
 import org.codepond.fcmappserver.messages.DownstreamMessage;
-import org.codepond.fcmappserver.messages.FcmMessage;
 import org.codepond.fcmappserver.messages.UpstreamMessage;
 import org.jivesoftware.smack.ConnectionConfiguration;
 import org.jivesoftware.smack.ConnectionConfiguration.SecurityMode;
-import org.jivesoftware.smack.ConnectionListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
-import org.jivesoftware.smack.filter.PacketTypeFilter;
 import org.jivesoftware.smack.packet.DefaultPacketExtension;
-import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
@@ -42,7 +36,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,25 +75,63 @@ public class CcsClient {
     public static final String GCM_ELEMENT_NAME = "gcm";
     public static final String GCM_NAMESPACE = "google:mobile:data";
 
-    XMPPConnection connection;
-    ConnectionConfiguration config;
+    /**
+     * Maximum number of unacknowledged downstream messages CCS allows per connection.
+     */
+    public static final int MAX_IN_FLIGHT_MESSAGES = 100;
 
     /// new: some additional instance and class members
     private static CcsClient sInstance = null;
     private String mServerKey = null;
     private String mSenderId = null;
     private boolean mDebuggable = true;
-
-    private JsonAdapter<UpstreamMessage.Request> mUpstreamRequestAdapter;
-    private JsonAdapter<UpstreamMessage.Response> mUpstreamResponseAdapter;
-    private JsonAdapter<DownstreamMessage.Request> mDownstreamRequestAdapter;
-    private JsonAdapter<DownstreamMessage.Response> mDownstreamResponseAdapter;
-    private JsonAdapter<FcmMessage> mFcmMessageAdapter;
+    private String mHost = GCM_SERVER;
+    private int mPort = GCM_PORT;
+    private boolean mTls = true;
+    private int mConnectionCount = 1;
+    private final List<CcsConnection> mConnections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger mNextConnectionId = new AtomicInteger();
+    private final Deque<PendingMessage> mUnrouted = new ConcurrentLinkedDeque<>();
+    private volatile boolean mConnected;
+    private final ExecutorService mConnectionExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ccs-connection");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private int mUpstreamWorkers = 0;
+    private int mUpstreamQueueDepth = 10000;
+    private UpstreamDispatcher.Backpressure mUpstreamBackpressure = UpstreamDispatcher.Backpressure.BLOCK;
+    private UpstreamDispatcher mUpstreamDispatcher;
+    private volatile CoalescingQueue mCoalescingQueue;
+    private volatile UpstreamDedupCache mDedupCache = new UpstreamDedupCache(10, TimeUnit.MINUTES, 100000);
+    private RegistrationStore mRegistrationStore = new ConcurrentRegistrationStore();
+    private DeviceGroupManager mDeviceGroupManager;
+    private ClusterNode mClusterNode;
+    private OutboundJournal mOutboundJournal;
+    private final RetryScheduler mRetryScheduler = new RetryScheduler();
+    private WireTracer mWireTracer = WireTracer.DISABLED;
+    private final List<ResponseListener> mResponseListeners = new CopyOnWriteArrayList<>();
+    private MessageIdGenerator mMessageIdGenerator = new MessageIdGenerator(MessageIdGenerator.defaultNodeId());
+    private final ProcessorRegistry mProcessorRegistry = ProcessorRegistry.withServices();
+    private final Metrics mMetrics = new Metrics();
+    private final LongAdder mAckCounter = mMetrics.counter("fcm_downstream_acked_total",
+            "Downstream messages acked by CCS");
+    private final LatencyHistogram mAckLatency = mMetrics.histogram("fcm_downstream_ack_latency_seconds",
+            "Time from writing a downstream message to receiving its ack");
+    private final LongAdder mUpstreamCounter = mMetrics.counter("fcm_upstream_received_total",
+            "Upstream messages received from devices");
+    private final LongAdder mCoalescedCounter = mMetrics.counter("fcm_downstream_coalesced_total",
+            "Downstream messages replaced by a later message with the same collapse key before being sent");
+    private final LongAdder mDuplicateCounter = mMetrics.counter("fcm_upstream_duplicates_total",
+            "Upstream messages CCS delivered again, acked without being processed");
+    // Labelled metrics looked up once per label value instead of once per message
+    private final Map<String, LongAdder> mNackCounters = new ConcurrentHashMap<>();
+    private final Map<Class<?>, LatencyHistogram> mProcessingLatencies = new ConcurrentHashMap<>();
 
     /**
      * XMPP Packet Extension for GCM Cloud Connection Server.
      */
-    class GcmPacketExtension extends DefaultPacketExtension {
+    static class GcmPacketExtension extends DefaultPacketExtension {
 
         String json;
 
@@ -102,40 +146,15 @@ public class CcsClient {
 
         @Override
         public String toXML() {
-            return String.format("<%s xmlns=\"%s\">%s</%s>", GCM_ELEMENT_NAME,
-                    GCM_NAMESPACE, json, GCM_ELEMENT_NAME);
+            return "<" + GCM_ELEMENT_NAME + " xmlns=\"" + GCM_NAMESPACE + "\">" + StringUtils.escapeForXML(json)
+                    + "</" + GCM_ELEMENT_NAME + ">";
         }
 
-        @SuppressWarnings("unused")
+        /**
+         * Wraps the payload in a message stanza, see {@link StanzaEncoder}.
+         */
         public Packet toPacket() {
-            return new Message() {
-                // Must override toXML() because it includes a <body>
-                @Override
-                public String toXML() {
-
-                    StringBuilder buf = new StringBuilder();
-                    buf.append("<message");
-                    if (getXmlns() != null) {
-                        buf.append(" xmlns=\"").append(getXmlns()).append("\"");
-                    }
-                    if (getLanguage() != null) {
-                        buf.append(" xml:lang=\"").append(getLanguage()).append("\"");
-                    }
-                    if (getPacketID() != null) {
-                        buf.append(" id=\"").append(getPacketID()).append("\"");
-                    }
-                    if (getTo() != null) {
-                        buf.append(" to=\"").append(StringUtils.escapeForXML(getTo())).append("\"");
-                    }
-                    if (getFrom() != null) {
-                        buf.append(" from=\"").append(StringUtils.escapeForXML(getFrom())).append("\"");
-                    }
-                    buf.append(">");
-                    buf.append(GcmPacketExtension.this.toXML());
-                    buf.append("</message>");
-                    return buf.toString();
-                }
-            };
+            return new StanzaEncoder.StanzaPacket(StanzaEncoder.encode(json));
         }
     }
 
@@ -160,12 +179,6 @@ public class CcsClient {
         mServerKey = serverKey;
         mSenderId = senderId;
         mDebuggable = debuggable;
-        Moshi moshi = new Moshi.Builder().build();
-        mDownstreamRequestAdapter = moshi.adapter(DownstreamMessage.Request.class);
-        mDownstreamResponseAdapter = moshi.adapter(DownstreamMessage.Response.class);
-        mUpstreamRequestAdapter = moshi.adapter(UpstreamMessage.Request.class);
-        mUpstreamResponseAdapter = moshi.adapter(UpstreamMessage.Response.class);
-        mFcmMessageAdapter = moshi.adapter(FcmMessage.class);
     }
 
     private CcsClient() {
@@ -176,116 +189,526 @@ public class CcsClient {
                     GcmPacketExtension packet = new GcmPacketExtension(json);
                     return packet;
                 });
+        mMetrics.gauge("fcm_connections", "Connections to CCS that are open and logged in",
+                () -> getStats().getConnected());
+        mMetrics.gauge("fcm_downstream_in_flight", "Downstream messages waiting for an ack",
+                () -> getStats().getInFlight());
+        mMetrics.gauge("fcm_downstream_queued", "Downstream messages waiting for a free window slot",
+                () -> getStats().getQueued());
+        mMetrics.gauge("fcm_downstream_unrouted", "Downstream messages waiting for a connection to CCS",
+                mUnrouted::size);
+        mMetrics.gauge("fcm_downstream_retries_pending", "Nacked messages scheduled to be sent again",
+                mRetryScheduler::getPendingCount);
+        mMetrics.gauge("fcm_downstream_staged", "Downstream messages held back to be coalesced",
+                () -> mCoalescingQueue == null ? 0 : mCoalescingQueue.getStagedCount());
+        mMetrics.gauge("fcm_upstream_pending", "Upstream messages waiting for or being processed",
+                () -> mUpstreamDispatcher == null ? 0 : mUpstreamDispatcher.getPendingCount());
+        mMetrics.gauge("fcm_upstream_dedup_entries", "Upstream messages remembered to detect redeliveries",
+                () -> mDedupCache == null ? 0 : mDedupCache.size());
+        mMetrics.gauge("fcm_downstream_journaled", "Downstream messages in the outbound journal waiting for an ack",
+                () -> mOutboundJournal == null ? 0 : mOutboundJournal.getPendingCount());
+        mMetrics.gauge("fcm_registrations", "Registration tokens kept by this app server",
+                () -> mRegistrationStore.size());
+    }
+
+    /**
+     * Connects to another server than CCS, e.g. a local stand-in for load testing.
+     * Must be called before {@link #connect()}.
+     *
+     * @param tls whether the connection is TLS from the start, as it is with CCS
+     */
+    public void setServer(String host, int port, boolean tls) {
+        mHost = host;
+        mPort = port;
+        mTls = tls;
+    }
+
+    /**
+     * Sets the number of concurrent connections opened to CCS by {@link #connect()}.
+     * Each connection has its own window of {@link #MAX_IN_FLIGHT_MESSAGES} messages,
+     * so downstream throughput scales with the number of connections.
+     */
+    public void setConnectionCount(int connectionCount) {
+        if (connectionCount < 1) {
+            throw new IllegalArgumentException("At least one connection is required");
+        }
+        mConnectionCount = connectionCount;
+    }
+
+    /**
+     * Configures the worker pool that processes upstream messages off the Smack listener thread.
+     * Must be called before {@link #connect()}.
+     *
+     * @param workers number of worker threads, or 0 to use virtual threads where available
+     * @param queueDepth maximum number of upstream messages waiting or being processed
+     * @param backpressure what to do with upstream messages while the queue is full
+     */
+    public void setUpstreamDispatch(int workers, int queueDepth, UpstreamDispatcher.Backpressure backpressure) {
+        mUpstreamWorkers = workers;
+        mUpstreamQueueDepth = queueDepth;
+        mUpstreamBackpressure = backpressure;
+    }
+
+    /**
+     * Holds back messages with a collapse key for the window, so that of several messages
+     * to the same recipient with the same collapse key only the last one is sent. Saves
+     * window slots and traffic when app events come in bursts.
+     *
+     * @param window how long the first message of a burst is held back, or 0 to send right away
+     */
+    public void setCoalescingWindow(long window, TimeUnit unit) {
+        CoalescingQueue previous = mCoalescingQueue;
+        mCoalescingQueue = window > 0 ? new CoalescingQueue(this::sendNow, window, unit, mCoalescedCounter) : null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Configures how long upstream messages are remembered to detect redeliveries by CCS,
+     * which are acked again but not processed. Up to {@code maxEntries} messages are
+     * remembered, at 16 bytes each.
+     *
+     * @param window how long messages are remembered, or 0 to process every delivery
+     */
+    public void setUpstreamDedup(long window, TimeUnit unit, int maxEntries) {
+        mDedupCache = window > 0 ? new UpstreamDedupCache(window, unit, maxEntries) : null;
+    }
+
+    public RegistrationStore getRegistrationStore() {
+        return mRegistrationStore;
+    }
+
+    /**
+     * Replaces the default in-memory {@link ConcurrentRegistrationStore}.
+     */
+    public void setRegistrationStore(RegistrationStore registrationStore) {
+        mRegistrationStore = registrationStore;
+    }
+
+    /**
+     * @return the manager of the accounts' device groups or null if messages to an account
+     * are always sent to each of its tokens
+     */
+    public DeviceGroupManager getDeviceGroupManager() {
+        return mDeviceGroupManager;
+    }
+
+    /**
+     * Enables sending to the device group of an account instead of each of its tokens,
+     * see {@link BroadcastEngine#broadcastToAccount}. Replaces the registration store
+     * with the manager's {@link DeviceGroupManager#getSyncingStore() syncing store}.
+     */
+    public void setDeviceGroupManager(DeviceGroupManager deviceGroupManager) {
+        mDeviceGroupManager = deviceGroupManager;
+        mRegistrationStore = deviceGroupManager.getSyncingStore();
+    }
+
+    /**
+     * @return the node of the cluster this app server is part of or null if it runs alone
+     */
+    public ClusterNode getClusterNode() {
+        return mClusterNode;
+    }
+
+    /**
+     * Runs this app server as a node of a cluster. Replaces the registration store with the
+     * node's {@link ClusterNode#getPartitionedStore() partitioned store}.
+     */
+    public void setClusterNode(ClusterNode clusterNode) {
+        mClusterNode = clusterNode;
+        mRegistrationStore = clusterNode.getPartitionedStore();
+    }
+
+    /**
+     * Records every message sent with {@link #sendAsync} in the journal until its future
+     * completes. A journaled message whose connection is lost is sent again on another one.
+     * Messages the journal holds from the previous run are sent again on {@link #connect()}.
+     * Must be set before connecting.
+     */
+    public void setOutboundJournal(OutboundJournal outboundJournal) {
+        mOutboundJournal = outboundJournal;
+    }
+
+    public WireTracer getWireTracer() {
+        return mWireTracer;
+    }
+
+    /**
+     * Enables tracing of the payloads sent and received. Must be called before {@link #connect()}.
+     */
+    public void setWireTracer(WireTracer wireTracer) {
+        mWireTracer = wireTracer;
+    }
+
+    public MessageIdGenerator getMessageIdGenerator() {
+        return mMessageIdGenerator;
+    }
+
+    /**
+     * Sets the id of this app server instance, which makes the generated message ids
+     * unique across instances.
+     */
+    public void setNodeId(String nodeId) {
+        mMessageIdGenerator = new MessageIdGenerator(nodeId);
     }
 
     /**
      * Sends a downstream GCM message.
      */
     public void send(String jsonRequest) {
-        Packet request = new GcmPacketExtension(jsonRequest).toPacket();
-        connection.sendPacket(request);
+        CcsConnection connection = nextConnection();
+        if (connection == null) {
+            throw new IllegalStateException("Not connected to CCS");
+        }
+        connection.send(jsonRequest);
     }
 
-    /// new: customized version of the standard handleIncomingDateMessage method
     /**
-     * Handles an upstream data message from a device application.
+     * Sends a downstream GCM message and tracks it until CCS acks or nacks it.
+     * Messages beyond the {@link #MAX_IN_FLIGHT_MESSAGES} window are queued and sent
+     * as soon as a slot is released, high priority messages ahead of others. Nacks with
+     * a transient error are retried as configured by the {@link #getRetryScheduler() retry
+     * scheduler}. Messages with a collapse key may be merged with later ones, see
+     * {@link #setCoalescingWindow}. With an {@link #setOutboundJournal outbound journal}
+     * the message is only sent once it's recorded on disk.
+     *
+     * @return a future completed with the ack or final nack for this message
      */
-    public void handleIncomingDataMessage(UpstreamMessage.Request msg) {
-        PayloadProcessor processor = ProcessorFactory.getProcessor(msg.getData().get("action"));
-        processor.handleMessage(msg);
+    public CompletableFuture<DownstreamMessage.Response> sendAsync(DownstreamMessage.Request request) {
+        return sendAsync(request, Lane.forPriority(request.getPriority()));
     }
-    
+
     /**
-     * Connects to GCM Cloud Connection Server using the supplied credentials.
-     * @throws XMPPException
+     * Sends a downstream GCM message in the given lane, see {@link #sendAsync(DownstreamMessage.Request)}.
      */
-    public void connect() throws XMPPException {
-        config = new ConnectionConfiguration(GCM_SERVER, GCM_PORT);
-        config.setSecurityMode(SecurityMode.enabled);
-        config.setReconnectionAllowed(true);
-        config.setRosterLoadedAtLogin(false);
-        config.setSendPresence(false);
-        config.setSocketFactory(SSLSocketFactory.getDefault());
+    public CompletableFuture<DownstreamMessage.Response> sendAsync(DownstreamMessage.Request request, Lane lane) {
+        if (request.getMessageId() == null) {
+            throw new IllegalArgumentException("message_id is required");
+        }
+        CoalescingQueue coalescingQueue = mCoalescingQueue;
+        if (coalescingQueue != null && request.getCollapseKey() != null) {
+            return coalescingQueue.submit(request, lane);
+        }
+        return sendNow(request, lane);
+    }
 
-        // NOTE: Set to true to launch a window with information about packets sent and received
-        config.setDebuggerEnabled(mDebuggable);
+    /**
+     * Sends the template's message to one recipient, like {@link #sendAsync(DownstreamMessage.Request)}
+     * but without encoding the payload again for every recipient.
+     *
+     * @param to registration token, notification key or topic
+     */
+    public CompletableFuture<DownstreamMessage.Response> sendAsync(String to, String messageId, MessageTemplate template) {
+        return sendAsync(to, messageId, template, Lane.forPriority(template.getPriority()));
+    }
 
-        // -Dsmack.debugEnabled=true
-        XMPPConnection.DEBUG_ENABLED = true;
+    /**
+     * Sends the template's message to one recipient in the given lane.
+     */
+    public CompletableFuture<DownstreamMessage.Response> sendAsync(String to, String messageId, MessageTemplate template,
+                                                                   Lane lane) {
+        if (messageId == null) {
+            throw new IllegalArgumentException("message_id is required");
+        }
+        if (mCoalescingQueue != null && template.getCollapseKey() != null) {
+            return sendAsync(template.toRequest(to, messageId), lane);
+        }
+        PendingMessage message = new PendingMessage(messageId, template.encode(to, messageId), lane);
+        journalAndSubmit(message);
+        return message.getFuture();
+    }
 
-        connection = new XMPPConnection(config);
-        connection.connect();
+    private CompletableFuture<DownstreamMessage.Response> sendNow(DownstreamMessage.Request request, Lane lane) {
+        PendingMessage message = new PendingMessage(request.getMessageId(), StanzaEncoder.encode(request), lane);
+        journalAndSubmit(message);
+        return message.getFuture();
+    }
 
-        connection.addConnectionListener(new ConnectionListener() {
+    private void journalAndSubmit(PendingMessage message) {
+        OutboundJournal journal = mOutboundJournal;
+        if (journal == null) {
+            submit(message);
+            return;
+        }
+        message.setJournaled();
+        long sequence = journal.append(message.getMessageId(), message.getStanza(), message.getLane(),
+                () -> submit(message));
+        // Also a failure is final once the caller sees it, a failed message must not hold its
+        // segment or be sent again after a restart
+        message.getFuture().whenComplete((response, error) -> journal.complete(sequence));
+    }
 
-            @Override
-            public void reconnectionSuccessful() {
-                logger.info("Reconnecting..");
+    /**
+     * Routes the message to the least loaded connection. While every connection is
+     * reconnecting or being replaced the message waits until one is available again.
+     */
+    void submit(PendingMessage message) {
+        CcsConnection connection = nextConnection();
+        if (connection != null) {
+            connection.sendAsync(message);
+        }
+        else if (!mConnected) {
+            message.getFuture().completeExceptionally(new IllegalStateException("Not connected to CCS"));
+        }
+        else {
+            mUnrouted.add(message);
+            // A connection may have become available before the message was added
+            if (nextConnection() != null) {
+                flushUnrouted();
             }
+        }
+    }
 
-            @Override
-            public void reconnectionFailed(Exception e) {
-                logger.log(Level.INFO, "Reconnection failed.. ", e);
+    /**
+     * Routes the messages that were waiting for a connection, called whenever one becomes available.
+     */
+    void flushUnrouted() {
+        PendingMessage message;
+        while ((message = mUnrouted.poll()) != null) {
+            CcsConnection connection = nextConnection();
+            if (connection == null) {
+                mUnrouted.addFirst(message);
+                return;
             }
+            connection.sendAsync(message);
+        }
+    }
 
-            @Override
-            public void reconnectingIn(int seconds) {
-                logger.log(Level.INFO, "Reconnecting in %d secs", seconds);
-            }
+    void handleAck(PendingMessage message, DownstreamMessage.Response ack) {
+        mAckCounter.increment();
+        mAckLatency.record(System.nanoTime() - message.getTransmitNanos(), TimeUnit.NANOSECONDS);
+        complete(message, ack);
+    }
 
-            @Override
-            public void connectionClosedOnError(Exception e) {
-                logger.log(Level.INFO, "Connection closed on error.");
-            }
+    /**
+     * Retries a nacked message if its error is transient, otherwise completes it with the nack.
+     */
+    void handleNack(PendingMessage message, DownstreamMessage.Response nack) {
+        mNackCounters.computeIfAbsent(String.valueOf(nack.getError()), error -> mMetrics.counter(
+                "fcm_downstream_nacked_total", "Downstream messages nacked by CCS, including retried ones",
+                "error", error)).increment();
+        if (mRetryScheduler.schedule(nack.getError(), message.getAttempts(), () -> submit(message))) {
+            logger.log(Level.FINE, () -> "Retrying message " + message.getMessageId() + " after " + nack.getError());
+        }
+        else {
+            complete(message, nack);
+        }
+    }
 
-            @Override
-            public void connectionClosed() {
-                logger.info("Connection closed.");
+    private void complete(PendingMessage message, DownstreamMessage.Response response) {
+        for (ResponseListener listener : mResponseListeners) {
+            try {
+                listener.onResponse(response);
             }
-        });
+            catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "Response listener failed", e);
+            }
+        }
+        message.getFuture().complete(response);
+    }
 
-        // Handle incoming packets
-        connection.addPacketListener(packet -> {
-            logger.log(Level.INFO, "Received: " + packet.toXML());
-            Message incomingMessage = (Message) packet;
-            GcmPacketExtension gcmPacket
-                    = (GcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
-            String json = gcmPacket.getJson();
-            handleMessage(json);
-        }, new PacketTypeFilter(Message.class));
+    /**
+     * Registers a listener for the final ack or nack of every message sent with {@link #sendAsync}.
+     */
+    public void addResponseListener(ResponseListener listener) {
+        mResponseListeners.add(listener);
+    }
 
-        // Log all outgoing packets
-        connection.addPacketInterceptor(packet -> logger.log(Level.INFO, "Sent: {0}", packet.toXML()), new PacketTypeFilter(Message.class));
+    public void removeResponseListener(ResponseListener listener) {
+        mResponseListeners.remove(listener);
+    }
 
-        connection.login(mSenderId + "@gcm.googleapis.com", mServerKey);
-        logger.log(Level.INFO, "logged in: " + mSenderId);
+    /**
+     * Scheduler of retries for nacked messages, its policies can be changed per error code.
+     */
+    public RetryScheduler getRetryScheduler() {
+        return mRetryScheduler;
     }
 
-    private void handleMessage(String messageJson) {
-        try {
-            FcmMessage fcmMessage = mFcmMessageAdapter.fromJson(messageJson);
-            if ("control".equals(fcmMessage.getMessageType())) {
-                logger.log(Level.INFO, "Received control message");
+    /**
+     * Counters and latencies of this client, see {@link MetricsHttpServer} for exporting them.
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Picks the available connection with the fewest unacknowledged messages.
+     *
+     * @return the connection or null if none is currently connected
+     */
+    private CcsConnection nextConnection() {
+        CcsConnection best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (CcsConnection connection : mConnections) {
+            if (!connection.isAvailable()) {
+                continue;
             }
-            else if ("ack".equals(fcmMessage.getMessageType())) {
-                logger.log(Level.INFO, "Received ack message for " + fcmMessage.getMessageId());
+            int load = connection.getLoad();
+            if (load < bestLoad) {
+                best = connection;
+                bestLoad = load;
             }
-            else if ("nack".equals(fcmMessage.getMessageType())) {
-                logger.log(Level.INFO, "Received nack message for " + fcmMessage.getMessageId());
+        }
+        return best;
+    }
+
+    /**
+     * Combined number of unacknowledged messages the available connections allow. Connections
+     * that are reconnecting or draining don't count, so this is 0 while none can send.
+     */
+    public int getWindowCapacity() {
+        int available = 0;
+        for (CcsConnection connection : mConnections) {
+            if (connection.isAvailable()) {
+                available++;
             }
-            else {
-                logger.log(Level.INFO, "Received upstream message");
-                UpstreamMessage.Request upStreamMessage = mUpstreamRequestAdapter.fromJson(messageJson);
-                handleIncomingDataMessage(upStreamMessage);
-                // Send mandatory ACK to CCS
-                String json = mUpstreamResponseAdapter.toJson(new UpstreamMessage.Response(upStreamMessage.getFrom(), upStreamMessage.getMessageId()));
-                send(json);
+        }
+        return available * MAX_IN_FLIGHT_MESSAGES;
+    }
+
+    /**
+     * Returns the counters of all connections summed up.
+     */
+    public ConnectionStats getStats() {
+        ConnectionStats stats = new ConnectionStats(0, 0, 0, 0, 0, 0, 0);
+        for (CcsConnection connection : mConnections) {
+            stats = stats.plus(connection.getStats());
+        }
+        return stats;
+    }
+
+    /// new: customized version of the standard handleIncomingDateMessage method
+    /**
+     * Handles an upstream data message from a device application.
+     */
+    public void handleIncomingDataMessage(UpstreamMessage.Request msg) {
+        long start = System.nanoTime();
+        PayloadProcessor processor = mProcessorRegistry.process(msg);
+        mProcessingLatencies.computeIfAbsent(processor.getClass(), type -> mMetrics.histogram(
+                "fcm_upstream_processing_seconds",
+                "Time spent processing an upstream message",
+                "processor", type.getSimpleName()))
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Processors of upstream messages by action.
+     */
+    public ProcessorRegistry getProcessorRegistry() {
+        return mProcessorRegistry;
+    }
+    
+    /**
+     * Connects to GCM Cloud Connection Server using the supplied credentials.
+     * Opens as many connections as configured via {@link #setConnectionCount(int)}.
+     * @throws XMPPException
+     */
+    public void connect() throws XMPPException {
+        // -Dsmack.debugEnabled=true
+        XMPPConnection.DEBUG_ENABLED = mDebuggable;
+
+        if (mUpstreamDispatcher == null) {
+            mUpstreamDispatcher = new UpstreamDispatcher(this::handleIncomingDataMessage, mProcessorRegistry::getExecutor,
+                    mUpstreamWorkers, mUpstreamQueueDepth, mUpstreamBackpressure);
+        }
+        while (mConnections.size() < mConnectionCount) {
+            openConnection();
+        }
+        mConnected = true;
+        logger.log(Level.INFO, "logged in: " + mSenderId + " with " + mConnections.size() + " connection(s)");
+        if (mOutboundJournal != null) {
+            mOutboundJournal.recover(this::journalAndSubmit);
+        }
+    }
+
+    /**
+     * Every connection gets its own configuration, so reconnection can be turned off
+     * for a single connection when CCS drains it.
+     */
+    private ConnectionConfiguration createConfiguration() {
+        ConnectionConfiguration config = new ConnectionConfiguration(mHost, mPort);
+        config.setReconnectionAllowed(true);
+        config.setRosterLoadedAtLogin(false);
+        config.setSendPresence(false);
+        if (mTls) {
+            config.setSecurityMode(SecurityMode.enabled);
+            config.setSocketFactory(SSLSocketFactory.getDefault());
+        }
+        else {
+            config.setSecurityMode(SecurityMode.disabled);
+        }
+
+        // NOTE: Set to true to launch a window with information about packets sent and received
+        config.setDebuggerEnabled(mDebuggable);
+        return config;
+    }
+
+    private CcsConnection openConnection() throws XMPPException {
+        CcsConnection connection = new CcsConnection(this, mNextConnectionId.getAndIncrement());
+        connection.connect(createConfiguration(), mSenderId + "@gcm.googleapis.com", mServerKey);
+        mConnections.add(connection);
+        flushUnrouted();
+        return connection;
+    }
+
+    /**
+     * Called when CCS announced it is going to close the connection. New messages are no
+     * longer routed to it, so a replacement is opened to keep up the pool's capacity.
+     */
+    void handleDraining(CcsConnection connection) {
+        logger.log(Level.INFO, "Connection " + connection.getId() + " is draining, opening a replacement");
+        mConnectionExecutor.execute(() -> {
+            try {
+                CcsConnection replacement = openConnection();
+                logger.log(Level.INFO, "Connection " + replacement.getId() + " replaces connection " + connection.getId());
+            }
+            catch (XMPPException e) {
+                logger.log(Level.SEVERE, "Failed to open a replacement for connection " + connection.getId(), e);
             }
+        });
+    }
+
+    /**
+     * Called once a draining connection is closed. Messages CCS never acked on it are
+     * sent again through the remaining connections, or wait for the replacement if
+     * there are none.
+     */
+    void handleDrained(CcsConnection connection, List<PendingMessage> unacked) {
+        mConnections.remove(connection);
+        if (!unacked.isEmpty()) {
+            logger.log(Level.INFO, "Resending " + unacked.size() + " unacked messages of connection " + connection.getId());
         }
-        catch (IOException e) {
-            logger.log(Level.SEVERE, "Error parsing JSON " + messageJson, e);
+        for (PendingMessage message : unacked) {
+            submit(message);
         }
+    }
 
+    /**
+     * Runs blocking connection work, like opening or closing connections, off the Smack threads.
+     */
+    void runAsync(Runnable task) {
+        mConnectionExecutor.execute(task);
+    }
+
+    /**
+     * Sends the mandatory ack for an upstream message and queues it for processing.
+     * Called on the Smack listener thread, so processing happens on the upstream workers.
+     */
+    void handleUpstreamMessage(UpstreamMessage.Request upStreamMessage, CcsConnection connection) {
+        logger.log(Level.FINE, () -> "Received upstream message " + upStreamMessage.getMessageId());
+        mUpstreamCounter.increment();
+        // Send mandatory ACK to CCS on the connection the message arrived on, acks are in the
+        // control lane and bypass the in-flight window
+        connection.sendStanza(StanzaEncoder.encodeAck(upStreamMessage.getFrom(), upStreamMessage.getMessageId()));
+        UpstreamDedupCache dedupCache = mDedupCache;
+        if (dedupCache != null && dedupCache.isDuplicate(upStreamMessage.getFrom(), upStreamMessage.getMessageId())) {
+            mDuplicateCounter.increment();
+            logger.log(Level.FINE, () -> "Ignoring redelivered upstream message " + upStreamMessage.getMessageId());
+            return;
+        }
+        mUpstreamDispatcher.dispatch(upStreamMessage);
     }
 
     public static void main(String[] args) throws XMPPException, IOException {
@@ -306,7 +729,85 @@ public class CcsClient {
             String senderId = properties.getProperty("org.codepond.fcmappserver.senderId");
             String serverKey = properties.getProperty("org.codepond.fcmappserver.serverKey");
             if (!senderId.isEmpty() && !serverKey.isEmpty()) {
-                CcsClient ccsClient = CcsClient.prepareClient(senderId, serverKey, true);
+                boolean debuggable = Boolean.parseBoolean(
+                        properties.getProperty("org.codepond.fcmappserver.debug", "false"));
+                CcsClient ccsClient = CcsClient.prepareClient(senderId, serverKey, debuggable);
+                ccsClient.setServer(properties.getProperty("org.codepond.fcmappserver.host", GCM_SERVER),
+                        Integer.parseInt(properties.getProperty("org.codepond.fcmappserver.port", String.valueOf(GCM_PORT))),
+                        Boolean.parseBoolean(properties.getProperty("org.codepond.fcmappserver.tls", "true")));
+                String traceFile = properties.getProperty("org.codepond.fcmappserver.trace.file", "");
+                if (!traceFile.isEmpty()) {
+                    ccsClient.setWireTracer(new WireTracer(new File(traceFile), Double.parseDouble(
+                            properties.getProperty("org.codepond.fcmappserver.trace.sampleRate", "0.01"))));
+                }
+                ccsClient.setConnectionCount(Integer.parseInt(
+                        properties.getProperty("org.codepond.fcmappserver.connections", "1")));
+                String nodeId = properties.getProperty("org.codepond.fcmappserver.nodeId", "");
+                if (!nodeId.isEmpty()) {
+                    ccsClient.setNodeId(nodeId);
+                }
+                String storeDirectory = properties.getProperty("org.codepond.fcmappserver.store.dir", "");
+                if (!storeDirectory.isEmpty()) {
+                    ccsClient.setRegistrationStore(new LogRegistrationStore(new File(storeDirectory)));
+                }
+                String journalDirectory = properties.getProperty("org.codepond.fcmappserver.journal.dir", "");
+                if (!journalDirectory.isEmpty()) {
+                    ccsClient.setOutboundJournal(new OutboundJournal(new File(journalDirectory)));
+                }
+                String clusterNodes = properties.getProperty("org.codepond.fcmappserver.cluster.nodes", "");
+                boolean deviceGroups = Boolean.parseBoolean(
+                        properties.getProperty("org.codepond.fcmappserver.deviceGroups", "false"));
+                if (!clusterNodes.isEmpty()) {
+                    if (nodeId.isEmpty()) {
+                        throw new IllegalArgumentException("A cluster node needs org.codepond.fcmappserver.nodeId");
+                    }
+                    String secret = properties.getProperty("org.codepond.fcmappserver.cluster.secret", "");
+                    if (secret.isEmpty()) {
+                        throw new IllegalArgumentException("A cluster node needs org.codepond.fcmappserver.cluster.secret");
+                    }
+                    if (deviceGroups) {
+                        // Every node would keep a group of its share of an account's tokens under the same name
+                        logger.log(Level.WARNING, "Device groups aren't supported in cluster mode, ignoring them");
+                        deviceGroups = false;
+                    }
+                    ClusterNode clusterNode = new ClusterNode(nodeId, ClusterNode.parseNodes(clusterNodes),
+                            ccsClient.getRegistrationStore(), new BroadcastEngine(ccsClient));
+                    clusterNode.setSecret(secret);
+                    ccsClient.setClusterNode(clusterNode);
+                    clusterNode.start();
+                }
+                if (deviceGroups) {
+                    ccsClient.setDeviceGroupManager(new DeviceGroupManager(new DeviceGroupClient(
+                            properties.getProperty("org.codepond.fcmappserver.deviceGroups.url", DeviceGroupClient.DEFAULT_URL),
+                            senderId, serverKey), ccsClient.getRegistrationStore()));
+                }
+                if (Boolean.parseBoolean(properties.getProperty("org.codepond.fcmappserver.pruneTokens", "true"))) {
+                    ccsClient.addResponseListener(new TokenPruner(ccsClient.getRegistrationStore()));
+                }
+                String concurrencyPrefix = "org.codepond.fcmappserver.maxConcurrency.";
+                for (String name : properties.stringPropertyNames()) {
+                    if (name.startsWith(concurrencyPrefix)) {
+                        ccsClient.getProcessorRegistry().setMaxConcurrency(name.substring(concurrencyPrefix.length()),
+                                Integer.parseInt(properties.getProperty(name)));
+                    }
+                }
+                ccsClient.setCoalescingWindow(
+                        Long.parseLong(properties.getProperty("org.codepond.fcmappserver.coalescingWindow", "0")),
+                        TimeUnit.MILLISECONDS);
+                ccsClient.setUpstreamDedup(
+                        Long.parseLong(properties.getProperty("org.codepond.fcmappserver.upstream.dedupWindow", "600")),
+                        TimeUnit.SECONDS,
+                        Integer.parseInt(properties.getProperty("org.codepond.fcmappserver.upstream.dedupEntries", "100000")));
+                ccsClient.setUpstreamDispatch(
+                        Integer.parseInt(properties.getProperty("org.codepond.fcmappserver.upstream.workers", "0")),
+                        Integer.parseInt(properties.getProperty("org.codepond.fcmappserver.upstream.queueDepth", "10000")),
+                        UpstreamDispatcher.Backpressure.valueOf(
+                                properties.getProperty("org.codepond.fcmappserver.upstream.backpressure", "BLOCK")));
+                new MetricsMBean(ccsClient.getMetrics()).register();
+                String metricsPort = properties.getProperty("org.codepond.fcmappserver.metrics.port", "");
+                if (!metricsPort.isEmpty() && Integer.parseInt(metricsPort) > 0) {
+                    new MetricsHttpServer(ccsClient.getMetrics(), Integer.parseInt(metricsPort)).start();
+                }
                 ccsClient.connect();
             }
             else {
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.CcsClient.GcmPacketExtension;
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+import org.codepond.fcmappserver.messages.UpstreamMessage;
+import org.jivesoftware.smack.ConnectionConfiguration;
+import org.jivesoftware.smack.ConnectionListener;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.filter.PacketTypeFilter;
+import org.jivesoftware.smack.packet.Message;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.GCM_NAMESPACE;
+import static org.codepond.fcmappserver.CcsClient.MAX_IN_FLIGHT_MESSAGES;
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * A single XMPP connection to CCS together with its own in-flight window.
+ * {@link CcsClient} keeps a pool of these and routes downstream messages to
+ * the connection with the fewest unacknowledged messages. Each connection
+ * reconnects on its own, independently of the others in the pool.
+ */
+class CcsConnection implements CcsMessageDecoder.Handler {
+
+    static final String CONNECTION_DRAINING = "CONNECTION_DRAINING";
+
+    private final CcsClient mClient;
+    private final int mId;
+    private final InFlightWindow mWindow = new InFlightWindow(MAX_IN_FLIGHT_MESSAGES, this::transmit);
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mAcked = new AtomicLong();
+    private final AtomicLong mNacked = new AtomicLong();
+    private final AtomicBoolean mClosing = new AtomicBoolean();
+    private final WireTracer mTracer;
+    private final LongAdder mSentCounter;
+    private ConnectionConfiguration mConfig;
+    private XMPPConnection mConnection;
+    private volatile boolean mDraining;
+
+    CcsConnection(CcsClient client, int id) {
+        mClient = client;
+        mId = id;
+        mTracer = client.getWireTracer();
+        mSentCounter = client.getMetrics().counter("fcm_downstream_sent_total",
+                "Downstream messages written to CCS, including retries");
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    /**
+     * Opens the connection and logs in to CCS.
+     */
+    void connect(ConnectionConfiguration config, String username, String password) throws XMPPException {
+        mConfig = config;
+        mConnection = new XMPPConnection(config);
+        mConnection.connect();
+
+        mConnection.addConnectionListener(new ConnectionListener() {
+
+            @Override
+            public void reconnectionSuccessful() {
+                logger.info("Connection " + mId + " reconnected");
+                mClient.flushUnrouted();
+            }
+
+            @Override
+            public void reconnectionFailed(Exception e) {
+                logger.log(Level.INFO, "Connection " + mId + " reconnection failed.. ", e);
+            }
+
+            @Override
+            public void reconnectingIn(int seconds) {
+                logger.log(Level.INFO, "Connection " + mId + " reconnecting in " + seconds + " secs");
+            }
+
+            @Override
+            public void connectionClosedOnError(Exception e) {
+                logger.log(Level.INFO, "Connection " + mId + " closed on error.");
+                onClosed(e);
+            }
+
+            @Override
+            public void connectionClosed() {
+                logger.info("Connection " + mId + " closed.");
+                onClosed(new IOException("Connection closed"));
+            }
+        });
+
+        // Handle incoming packets
+        mConnection.addPacketListener(packet -> {
+            Message incomingMessage = (Message) packet;
+            GcmPacketExtension gcmPacket
+                    = (GcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
+            String json = gcmPacket.getJson();
+            mTracer.traceInbound(mId, json);
+            try {
+                CcsMessageDecoder.decode(json, this);
+            }
+            catch (IOException e) {
+                logger.log(Level.SEVERE, "Error parsing JSON " + json, e);
+            }
+        }, new PacketTypeFilter(Message.class));
+
+        mConnection.login(username, password);
+        logger.log(Level.INFO, "Connection " + mId + " logged in: " + username);
+    }
+
+    private void onClosed(Exception e) {
+        if (mDraining) {
+            mClient.handleDrained(this, mWindow.removeAll());
+        }
+        else {
+            // Queued messages were never written, so another connection can still send them
+            for (PendingMessage message : mWindow.removeQueued()) {
+                mClient.submit(message);
+            }
+            for (PendingMessage message : mWindow.removeAll()) {
+                if (message.isJournaled()) {
+                    // It stays in the journal until it's acked or nacked, so it's sent again
+                    // right away rather than after a restart
+                    mClient.submit(message);
+                }
+                else {
+                    message.getFuture().completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops routing new messages to this connection and hands its queued messages to
+     * the other connections, or to the replacement once it's logged in. The connection
+     * is closed once the in-flight messages are acked or CCS closes it, whichever comes
+     * first.
+     */
+    private void drain() {
+        mDraining = true;
+        // Smack must not reconnect once CCS closes the connection
+        mConfig.setReconnectionAllowed(false);
+        mClient.handleDraining(this);
+        List<PendingMessage> queued = mWindow.removeQueued();
+        for (PendingMessage message : queued) {
+            mClient.submit(message);
+        }
+        closeIfDrained();
+    }
+
+    private void closeIfDrained() {
+        if (mDraining && mWindow.getInFlightCount() == 0 && mClosing.compareAndSet(false, true)) {
+            logger.log(Level.INFO, "Connection " + mId + " drained, closing");
+            mClient.runAsync(this::disconnect);
+        }
+    }
+
+    boolean isDraining() {
+        return mDraining;
+    }
+
+    void disconnect() {
+        if (mConnection != null) {
+            mConnection.disconnect();
+        }
+    }
+
+    /**
+     * Writes a message to the connection without tracking it, e.g. an ack for an upstream message.
+     */
+    void send(String json) {
+        sendStanza(StanzaEncoder.encode(json));
+    }
+
+    /**
+     * Sends a stanza built by {@link StanzaEncoder}.
+     */
+    void sendStanza(String stanza) {
+        mConnection.sendPacket(new StanzaEncoder.StanzaPacket(stanza));
+        mTracer.traceOutboundStanza(mId, stanza);
+    }
+
+    /**
+     * Sends a downstream message through this connection's in-flight window.
+     */
+    void sendAsync(PendingMessage message) {
+        mWindow.submit(message);
+    }
+
+    private void transmit(PendingMessage message) {
+        try {
+            message.onTransmit();
+            sendStanza(message.getStanza());
+            mSent.incrementAndGet();
+            mSentCounter.increment();
+        }
+        catch (RuntimeException e) {
+            // The connection is gone, none of the in-flight messages will be acked
+            logger.log(Level.WARNING, "Connection " + mId + " failed to send message " + message.getMessageId(), e);
+            mWindow.failAll(e);
+        }
+    }
+
+    @Override
+    public void onAck(String messageId, String from, String registrationId) {
+        logger.log(Level.FINE, () -> "Received ack message for " + messageId);
+        mAcked.incrementAndGet();
+        PendingMessage message = mWindow.release(messageId);
+        if (message != null) {
+            mClient.handleAck(message,
+                    new DownstreamMessage.Response(from, messageId, "ack", registrationId, null, null));
+        }
+        else {
+            logger.log(Level.WARNING, "Received ack for unknown message " + messageId);
+        }
+        closeIfDrained();
+    }
+
+    @Override
+    public void onNack(String messageId, String from, String error, String errorDescription) {
+        logger.log(Level.FINE, () -> "Received nack message for " + messageId);
+        mNacked.incrementAndGet();
+        PendingMessage message = mWindow.release(messageId);
+        if (message != null) {
+            mClient.handleNack(message,
+                    new DownstreamMessage.Response(from, messageId, "nack", null, error, errorDescription));
+        }
+        else {
+            logger.log(Level.WARNING, "Received nack for unknown message " + messageId);
+        }
+        closeIfDrained();
+    }
+
+    @Override
+    public void onControl(String controlType) {
+        logger.log(Level.INFO, "Received control message " + controlType);
+        if (CONNECTION_DRAINING.equals(controlType)) {
+            drain();
+        }
+    }
+
+    @Override
+    public void onUpstream(UpstreamMessage.Request message) {
+        mClient.handleUpstreamMessage(message, this);
+    }
+
+    boolean isAvailable() {
+        return !mDraining && mConnection != null && mConnection.isConnected() && mConnection.isAuthenticated();
+    }
+
+    /**
+     * Number of messages waiting for an ack, including those queued behind the window.
+     */
+    int getLoad() {
+        return mWindow.getInFlightCount() + mWindow.getQueuedCount();
+    }
+
+    ConnectionStats getStats() {
+        return new ConnectionStats(1, isAvailable() ? 1 : 0, mWindow.getInFlightCount(),
+                mWindow.getQueuedCount(), mSent.get(), mAcked.get(), mNacked.get());
+    }
+}
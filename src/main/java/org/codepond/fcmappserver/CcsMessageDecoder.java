@@ -0,0 +1,147 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonReader;
+import okio.Buffer;
+import org.codepond.fcmappserver.messages.UpstreamMessage;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the JSON payload of an inbound CCS stanza in a single streaming pass
+ * and dispatches it by message_type. Acks, nacks and control messages are
+ * handed over as plain fields, only upstream messages are materialized.
+ */
+class CcsMessageDecoder {
+
+    /**
+     * Receives the decoded messages.
+     */
+    interface Handler {
+
+        void onAck(String messageId, String from, String registrationId);
+
+        void onNack(String messageId, String from, String error, String errorDescription);
+
+        void onControl(String controlType);
+
+        void onUpstream(UpstreamMessage.Request message);
+    }
+
+    private CcsMessageDecoder() {
+    }
+
+    static void decode(String json, Handler handler) throws IOException {
+        String messageType = null;
+        String messageId = null;
+        String from = null;
+        String category = null;
+        String registrationId = null;
+        String error = null;
+        String errorDescription = null;
+        String controlType = null;
+        Map<String, String> data = null;
+
+        JsonReader reader = JsonReader.of(new Buffer().writeUtf8(json));
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "message_type":
+                    messageType = nextString(reader);
+                    break;
+                case "message_id":
+                    messageId = nextString(reader);
+                    break;
+                case "from":
+                    from = nextString(reader);
+                    break;
+                case "category":
+                    category = nextString(reader);
+                    break;
+                case "registration_id":
+                    registrationId = nextString(reader);
+                    break;
+                case "error":
+                    error = nextString(reader);
+                    break;
+                case "error_description":
+                    errorDescription = nextString(reader);
+                    break;
+                case "control_type":
+                    controlType = nextString(reader);
+                    break;
+                case "data":
+                    data = nextData(reader);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (messageType == null) {
+            handler.onUpstream(new UpstreamMessage.Request(null, from, category, messageId,
+                    data != null ? data : new HashMap<>()));
+            return;
+        }
+        switch (messageType) {
+            case "ack":
+                handler.onAck(messageId, from, registrationId);
+                break;
+            case "nack":
+                handler.onNack(messageId, from, error, errorDescription);
+                break;
+            case "control":
+                handler.onControl(controlType);
+                break;
+            default:
+                handler.onUpstream(new UpstreamMessage.Request(messageType, from, category, messageId,
+                        data != null ? data : new HashMap<>()));
+        }
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonReader.Token.NULL) {
+            return reader.nextNull();
+        }
+        return reader.nextString();
+    }
+
+    private static Map<String, String> nextData(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonReader.Token.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        Map<String, String> data = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonReader.Token token = reader.peek();
+            if (token == JsonReader.Token.STRING || token == JsonReader.Token.NUMBER) {
+                data.put(name, reader.nextString());
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return data;
+    }
+}
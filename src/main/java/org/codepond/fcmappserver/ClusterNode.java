@@ -0,0 +1,632 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Runs this app server as one node of a cluster. Registration tokens are partitioned
+ * across the nodes by a {@link HashRing}: each token is kept only by the node owning it,
+ * and every node runs its own connections to CCS and sends to its own tokens.
+ * <br>
+ * Upstream messages arrive at any node, so registration changes made through
+ * {@link #getPartitionedStore()} are forwarded to the owning node. They are forwarded
+ * in the background, in order per node, and retried with backoff while the owner is
+ * unreachable. Broadcasts are
+ * split by partition: the node starting a broadcast sends to its own tokens and asks
+ * every other node to send to theirs.
+ * <br>
+ * Nodes talk to each other over HTTP on the host and port of their URL, authenticated
+ * by a shared secret. Each node serves:
+ * <ul>
+ *     <li>POST /cluster/register {"token": ..., "account": ...}</li>
+ *     <li>POST /cluster/unregister {"token": ...}</li>
+ *     <li>POST /cluster/broadcast {"account": ..., "data": {...}, "local": true} sends to the
+ *     node's own tokens, or to the whole cluster's if local is false</li>
+ *     <li>GET /cluster/status</li>
+ * </ul>
+ * Membership is static. Tokens of a node that leaves the ring are registered with their
+ * new owner the next time the app registers them.
+ */
+public class ClusterNode {
+
+    /**
+     * Header carrying the shared secret of the cluster.
+     */
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    private static final int TIMEOUT_MILLIS = 5000;
+    private static final String NODELAY_PROPERTY = "sun.net.httpserver.nodelay";
+    /**
+     * Backoff between attempts to forward a registration change. Changes are retried
+     * until the owner takes them, so the attempts are unlimited.
+     */
+    private static final RetryPolicy FORWARD_RETRY_POLICY =
+            new RetryPolicy(Integer.MAX_VALUE, 1, 60, TimeUnit.SECONDS);
+    /**
+     * Upper bound of the changes waiting for one node. Tokens of a dropped change are
+     * registered with their owner the next time the app registers them.
+     */
+    private static final int MAX_QUEUED_FORWARDS = 100000;
+
+    private final String mNodeId;
+    private final Map<String, String> mNodes;
+    private final HashRing mRing;
+    private final RegistrationStore mStore;
+    private final RegistrationStore mPartitionedStore;
+    private final BroadcastEngine mBroadcastEngine;
+    private final Map<String, Forwarder> mForwarders = new HashMap<>();
+    private final ExecutorService mForwardExecutor;
+    private final TimerWheel mForwardTimer;
+    private volatile String mSecret;
+    private volatile byte[] mSecretBytes;
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param nodes base URLs of all nodes of the cluster, including this one, by node id
+     * @param store the store of this node's partition
+     * @param broadcastEngine the engine sending this node's share of the broadcasts, it has
+     *                        to send through a client using the {@link #getPartitionedStore() partitioned store}
+     */
+    public ClusterNode(String nodeId, Map<String, String> nodes, RegistrationStore store,
+                       BroadcastEngine broadcastEngine) {
+        if (!nodes.containsKey(nodeId)) {
+            throw new IllegalArgumentException("Node " + nodeId + " isn't one of the cluster's nodes " + nodes.keySet());
+        }
+        mNodeId = nodeId;
+        mNodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+        mRing = new HashRing(mNodes.keySet());
+        mStore = store;
+        mPartitionedStore = new PartitionedStore();
+        mBroadcastEngine = broadcastEngine;
+        for (String node : mNodes.keySet()) {
+            if (!node.equals(mNodeId)) {
+                mForwarders.put(node, new Forwarder(node));
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        // At most one thread per node, a slow node only holds up its own changes
+        mForwardExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "cluster-forward-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        mForwardTimer = new TimerWheel("cluster-retry-timer", 100, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * Parses a list of nodes in the form id=url,id=url,...
+     */
+    public static Map<String, String> parseNodes(String nodes) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (String node : nodes.split(",")) {
+            int separator = node.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected id=url but got " + node);
+            }
+            result.put(node.substring(0, separator).trim(), node.substring(separator + 1).trim());
+        }
+        return result;
+    }
+
+    /**
+     * Requires other nodes to send the secret with their requests and sends it with this
+     * node's requests. Every node of the cluster needs the same secret, and a node
+     * doesn't start without one.
+     */
+    public void setSecret(String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("The cluster secret must not be empty");
+        }
+        mSecretBytes = secret.getBytes(StandardCharsets.UTF_8);
+        mSecret = secret;
+    }
+
+    public String getNodeId() {
+        return mNodeId;
+    }
+
+    public HashRing getRing() {
+        return mRing;
+    }
+
+    /**
+     * @return whether this node owns the token
+     */
+    public boolean isLocal(String token) {
+        return mNodeId.equals(mRing.ownerOf(token));
+    }
+
+    /**
+     * The store with which registration changes reach the owning node. Reads only see
+     * this node's partition. Use it in place of the store passed to the constructor.
+     */
+    public RegistrationStore getPartitionedStore() {
+        return mPartitionedStore;
+    }
+
+    /**
+     * Starts serving the other nodes on the host and port of this node's URL.
+     *
+     * @throws IllegalStateException if no {@link #setSecret secret} is set
+     */
+    public synchronized void start() throws IOException {
+        if (mSecret == null) {
+            throw new IllegalStateException("Cluster node " + mNodeId + " needs a secret");
+        }
+        URI uri = URI.create(mNodes.get(mNodeId));
+        AtomicInteger count = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "cluster-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (System.getProperty(NODELAY_PROPERTY) == null) {
+            // The server writes response headers and body separately, with Nagle's algorithm every
+            // response would wait for the delayed ack of the headers. Read once by the first server.
+            System.setProperty(NODELAY_PROPERTY, "true");
+        }
+        mServer = HttpServer.create(new InetSocketAddress(uri.getHost(), uri.getPort()), 0);
+        mServer.createContext("/cluster/register", exchange -> handle(exchange, request -> {
+            mStore.addRegistration(request.get("token"), request.get("account"));
+            return Collections.emptyMap();
+        }));
+        mServer.createContext("/cluster/unregister", exchange -> handle(exchange, request ->
+                Collections.singletonMap("removed", String.valueOf(mStore.removeRegistration(request.get("token"))))));
+        mServer.createContext("/cluster/broadcast", exchange -> handle(exchange, request -> {
+            Map<String, String> data = Messages.data(request);
+            String account = request.get("account");
+            Broadcast broadcast = Boolean.parseBoolean(request.get("local"))
+                    ? broadcastLocally(account, data)
+                    : broadcast(account, data);
+            return Collections.singletonMap("id", broadcast.getId());
+        }));
+        mServer.createContext("/cluster/status", exchange -> handle(exchange, request -> {
+            long misplaced = 0;
+            for (Iterator<String> tokens = mStore.registrationIds(); tokens.hasNext(); ) {
+                if (!isLocal(tokens.next())) {
+                    misplaced++;
+                }
+            }
+            Map<String, String> status = new LinkedHashMap<>();
+            status.put("node", mNodeId);
+            status.put("registrations", String.valueOf(mStore.size()));
+            status.put("misplaced", String.valueOf(misplaced));
+            status.put("forwarding", String.valueOf(getForwardingCount()));
+            return status;
+        }));
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+        logger.log(Level.INFO, "Cluster node " + mNodeId + " serving on " + uri.getHost() + ":" + uri.getPort()
+                + ", nodes " + mNodes.keySet());
+    }
+
+    public synchronized void shutdown() {
+        if (mServer != null) {
+            mServer.stop(0);
+            mExecutor.shutdownNow();
+            mServer = null;
+        }
+        int forwarding = getForwardingCount();
+        if (forwarding > 0) {
+            logger.log(Level.WARNING, "Dropping " + forwarding + " registration changes not forwarded yet");
+        }
+        mForwardTimer.stop();
+        mForwardExecutor.shutdownNow();
+    }
+
+    /**
+     * Number of registration changes waiting to be forwarded to their owner.
+     */
+    public int getForwardingCount() {
+        int count = 0;
+        for (Forwarder forwarder : mForwarders.values()) {
+            count += forwarder.mSize.get();
+        }
+        return count;
+    }
+
+    /**
+     * Sends the data to every registered token of the cluster. This node sends to its own
+     * tokens, the other nodes are asked to send to theirs. If the broadcast engine sends to
+     * a topic, the message is only sent once, by this node.
+     *
+     * @return this node's share of the broadcast
+     */
+    public Broadcast broadcastToAll(Map<String, String> data) {
+        return broadcast(null, data);
+    }
+
+    /**
+     * Sends the data to every token of the account, wherever in the cluster they are kept.
+     *
+     * @return this node's share of the broadcast
+     */
+    public Broadcast broadcastToAccount(String account, Map<String, String> data) {
+        return broadcast(account, data);
+    }
+
+    private Broadcast broadcast(String account, Map<String, String> data) {
+        Broadcast broadcast = broadcastLocally(account, data);
+        if (account == null && mBroadcastEngine.getBroadcastTopic() != null) {
+            return broadcast;
+        }
+        for (String node : mNodes.keySet()) {
+            if (!node.equals(mNodeId)) {
+                try {
+                    call(node, "/cluster/broadcast", Messages.broadcast(account, data));
+                }
+                catch (IOException e) {
+                    logger.log(Level.WARNING, "Node " + node + " failed to take its share of broadcast "
+                            + broadcast.getId(), e);
+                }
+            }
+        }
+        return broadcast;
+    }
+
+    private Broadcast broadcastLocally(String account, Map<String, String> data) {
+        return account != null
+                ? mBroadcastEngine.broadcastToAccount(account, data)
+                : mBroadcastEngine.broadcastToAll(data);
+    }
+
+    private interface Handler {
+        Map<String, String> handle(Map<String, String> request) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            String secret = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+            // Compared in constant time, so response times don't reveal how much of a guess was right
+            if (secret == null || !MessageDigest.isEqual(mSecretBytes, secret.getBytes(StandardCharsets.UTF_8))) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_FORBIDDEN, -1);
+                return;
+            }
+            Map<String, String> response;
+            try (InputStream in = exchange.getRequestBody()) {
+                response = handler.handle(Messages.read(in));
+            }
+            catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "Cluster request " + exchange.getRequestURI() + " failed", e);
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_INTERNAL_ERROR, -1);
+                return;
+            }
+            Buffer body = Messages.write(response);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        }
+        finally {
+            exchange.close();
+        }
+    }
+
+    private Map<String, String> call(String node, String path, Buffer body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(mNodes.get(node) + path).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty(SECRET_HEADER, mSecret);
+        try (OutputStream out = connection.getOutputStream()) {
+            body.writeTo(out);
+        }
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            throw new IOException("Node " + node + " answered " + path + " with HTTP " + status);
+        }
+        try (InputStream in = connection.getInputStream()) {
+            return Messages.read(in);
+        }
+    }
+
+    /**
+     * Forwards changes of tokens owned by other nodes to their owner and keeps the rest
+     * in this node's store.
+     */
+    private final class PartitionedStore implements RegistrationStore {
+
+        @Override
+        public void addRegistration(String regId, String accountName) {
+            String owner = mRing.ownerOf(regId);
+            if (owner.equals(mNodeId)) {
+                mStore.addRegistration(regId, accountName);
+                return;
+            }
+            Map<String, String> request = new HashMap<>();
+            request.put("token", regId);
+            request.put("account", accountName);
+            mForwarders.get(owner).forward("/cluster/register", request);
+        }
+
+        /**
+         * @return true if the token is owned by another node, its owner removes it in the background
+         */
+        @Override
+        public boolean removeRegistration(String regId) {
+            String owner = mRing.ownerOf(regId);
+            if (owner.equals(mNodeId)) {
+                return mStore.removeRegistration(regId);
+            }
+            mForwarders.get(owner).forward("/cluster/unregister", Collections.singletonMap("token", regId));
+            return true;
+        }
+
+        @Override
+        public boolean isRegistered(String regId) {
+            return mStore.isRegistered(regId);
+        }
+
+        @Override
+        public String getAccount(String regId) {
+            return mStore.getAccount(regId);
+        }
+
+        @Override
+        public int size() {
+            return mStore.size();
+        }
+
+        @Override
+        public Iterator<String> registrationIds() {
+            return mStore.registrationIds();
+        }
+
+        @Override
+        public Set<String> getAllRegistrationIds() {
+            return mStore.getAllRegistrationIds();
+        }
+
+        @Override
+        public Set<String> getAllRegistrationIdsForAccount(String account) {
+            return mStore.getAllRegistrationIdsForAccount(account);
+        }
+
+        @Override
+        public Set<String> getAccounts() {
+            return mStore.getAccounts();
+        }
+
+        @Override
+        public String getNotificationKeyName(String accountName) {
+            return mStore.getNotificationKeyName(accountName);
+        }
+
+        @Override
+        public void storeNotificationKeyName(String accountName, String notificationKeyName) {
+            mStore.storeNotificationKeyName(accountName, notificationKeyName);
+        }
+    }
+
+    /**
+     * Sends registration changes to one node in the order they were made, one at a time.
+     * A change the node doesn't take is retried with backoff before any later change,
+     * so a register and unregister of the same token can't overtake each other.
+     */
+    private final class Forwarder {
+
+        private final String mNode;
+        private final Queue<Forward> mQueue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger mSize = new AtomicInteger();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        /**
+         * Failed attempts of the change at the head of the queue, only accessed by the draining thread.
+         */
+        private int mAttempts;
+
+        Forwarder(String node) {
+            mNode = node;
+        }
+
+        void forward(String path, Map<String, String> request) {
+            if (mSize.incrementAndGet() > MAX_QUEUED_FORWARDS) {
+                mSize.decrementAndGet();
+                logger.log(Level.WARNING, "Node " + mNode + " is too far behind, dropping " + path
+                        + " of token " + request.get("token"));
+                return;
+            }
+            mQueue.add(new Forward(path, request));
+            if (mScheduled.compareAndSet(false, true)) {
+                execute();
+            }
+        }
+
+        private void execute() {
+            try {
+                mForwardExecutor.execute(this::drain);
+            }
+            catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+
+        private void drain() {
+            Forward forward;
+            while ((forward = mQueue.peek()) != null) {
+                try {
+                    call(mNode, forward.mPath, Messages.write(forward.mRequest));
+                }
+                catch (IOException | RuntimeException e) {
+                    mAttempts++;
+                    long backoff = FORWARD_RETRY_POLICY.backoffMillis(mAttempts);
+                    logger.log(Level.WARNING, "Failed to forward " + forward.mPath + " to node " + mNode
+                            + ", " + mSize.get() + " changes waiting, retrying in " + backoff + " ms", e);
+                    try {
+                        // Stays scheduled until the retry, the timer's thread must not block
+                        mForwardTimer.schedule(this::execute, backoff, TimeUnit.MILLISECONDS);
+                    }
+                    catch (IllegalStateException stopped) {
+                        // Shutting down
+                    }
+                    return;
+                }
+                mAttempts = 0;
+                mQueue.poll();
+                mSize.decrementAndGet();
+            }
+            mScheduled.set(false);
+            // A change added after the queue was found empty couldn't schedule a drain
+            if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+                execute();
+            }
+        }
+    }
+
+    private static final class Forward {
+        final String mPath;
+        final Map<String, String> mRequest;
+
+        Forward(String path, Map<String, String> request) {
+            mPath = path;
+            mRequest = request;
+        }
+    }
+
+    /**
+     * JSON bodies of the requests between nodes: objects of strings, broadcasts carry
+     * their data as a nested object.
+     */
+    private static final class Messages {
+
+        private static final String DATA_PREFIX = "data.";
+
+        static Buffer broadcast(String account, Map<String, String> data) {
+            Map<String, String> request = new HashMap<>();
+            request.put("account", account);
+            request.put("local", "true");
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                request.put(DATA_PREFIX + entry.getKey(), entry.getValue());
+            }
+            return write(request);
+        }
+
+        static Map<String, String> data(Map<String, String> request) {
+            Map<String, String> data = new HashMap<>();
+            for (Map.Entry<String, String> entry : request.entrySet()) {
+                if (entry.getKey().startsWith(DATA_PREFIX)) {
+                    data.put(entry.getKey().substring(DATA_PREFIX.length()), entry.getValue());
+                }
+            }
+            return data;
+        }
+
+        static Buffer write(Map<String, String> fields) {
+            Buffer body = new Buffer();
+            try (JsonWriter writer = JsonWriter.of(body)) {
+                writer.beginObject();
+                Map<String, String> data = null;
+                for (Map.Entry<String, String> entry : fields.entrySet()) {
+                    if (entry.getKey().startsWith(DATA_PREFIX)) {
+                        if (data == null) {
+                            data = new LinkedHashMap<>();
+                        }
+                        data.put(entry.getKey().substring(DATA_PREFIX.length()), entry.getValue());
+                    }
+                    else if (entry.getValue() != null) {
+                        writer.name(entry.getKey()).value(entry.getValue());
+                    }
+                }
+                if (data != null) {
+                    writer.name("data").beginObject();
+                    for (Map.Entry<String, String> entry : data.entrySet()) {
+                        writer.name(entry.getKey()).value(entry.getValue());
+                    }
+                    writer.endObject();
+                }
+                writer.endObject();
+            }
+            catch (IOException e) {
+                // Writing to a buffer doesn't fail
+                throw new AssertionError(e);
+            }
+            return body;
+        }
+
+        static Map<String, String> read(InputStream in) throws IOException {
+            Map<String, String> fields = new HashMap<>();
+            BufferedSource source = Okio.buffer(Okio.source(in));
+            if (source.exhausted()) {
+                return fields;
+            }
+            JsonReader reader = JsonReader.of(source);
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("data".equals(name) && reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        fields.put(DATA_PREFIX + reader.nextName(), reader.nextString());
+                    }
+                    reader.endObject();
+                }
+                else if (reader.peek() == JsonReader.Token.BOOLEAN) {
+                    fields.put(name, String.valueOf(reader.nextBoolean()));
+                }
+                else if (reader.peek() == JsonReader.Token.NULL) {
+                    reader.nextNull();
+                }
+                else {
+                    fields.put(name, reader.nextString());
+                }
+            }
+            reader.endObject();
+            return fields;
+        }
+    }
+}
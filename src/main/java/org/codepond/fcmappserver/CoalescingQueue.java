@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Holds back downstream messages with a collapse key for a short window, so that a
+ * burst of messages to the same recipient with the same collapse key goes out as a
+ * single message: the last one staged. The window starts with the first message of
+ * a burst, so no message is delayed longer than the window.
+ * <br>
+ * The futures of merged messages complete with the response to the message that was
+ * sent in their place. It is sent in the most urgent {@link Lane} of the merged messages.
+ */
+class CoalescingQueue {
+
+    private static final class Staged {
+        DownstreamMessage.Request mRequest;
+        Lane mLane;
+        final List<CompletableFuture<DownstreamMessage.Response>> mFutures = new ArrayList<>(2);
+    }
+
+    private final BiFunction<DownstreamMessage.Request, Lane, CompletableFuture<DownstreamMessage.Response>> mSender;
+    private final Map<String, Staged> mStaged = new ConcurrentHashMap<>();
+    private final TimerWheel mTimer;
+    private final long mWindowNanos;
+    private final LongAdder mCoalesced;
+
+    /**
+     * @param sender sends the messages that survive the window
+     * @param coalesced counts the messages merged into a later one
+     */
+    CoalescingQueue(BiFunction<DownstreamMessage.Request, Lane, CompletableFuture<DownstreamMessage.Response>> sender,
+                    long window, TimeUnit unit, LongAdder coalesced) {
+        mSender = sender;
+        mWindowNanos = unit.toNanos(window);
+        mCoalesced = coalesced;
+        // Messages go out at most a fifth of the window late
+        mTimer = new TimerWheel("coalescing-timer", Math.max(1, unit.toMillis(window) / 5), TimeUnit.MILLISECONDS, 64);
+    }
+
+    /**
+     * Stages a message with a collapse key, replacing a staged message to the same
+     * recipient with the same collapse key.
+     */
+    CompletableFuture<DownstreamMessage.Response> submit(DownstreamMessage.Request request, Lane lane) {
+        CompletableFuture<DownstreamMessage.Response> future = new CompletableFuture<>();
+        String key = request.getTo() + '\u0000' + request.getCollapseKey();
+        boolean[] first = new boolean[1];
+        mStaged.compute(key, (k, staged) -> {
+            if (staged == null) {
+                staged = new Staged();
+                staged.mLane = lane;
+                first[0] = true;
+            }
+            else {
+                mCoalesced.increment();
+                if (lane.compareTo(staged.mLane) < 0) {
+                    staged.mLane = lane;
+                }
+            }
+            staged.mRequest = request;
+            staged.mFutures.add(future);
+            return staged;
+        });
+        if (first[0]) {
+            try {
+                mTimer.schedule(() -> flush(key), mWindowNanos, TimeUnit.NANOSECONDS);
+            }
+            catch (IllegalStateException e) {
+                // Shut down while staging
+                flush(key);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Number of messages waiting for their window to end.
+     */
+    int getStagedCount() {
+        return mStaged.size();
+    }
+
+    private void flush(String key) {
+        Staged staged = mStaged.remove(key);
+        if (staged == null) {
+            return;
+        }
+        CompletableFuture<DownstreamMessage.Response> response;
+        try {
+            response = mSender.apply(staged.mRequest, staged.mLane);
+        }
+        catch (RuntimeException e) {
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+        response.whenComplete((result, error) -> {
+            for (CompletableFuture<DownstreamMessage.Response> future : staged.mFutures) {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                }
+                else {
+                    future.complete(result);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends all staged messages right away and stops the timer.
+     */
+    void shutdown() {
+        mTimer.stop();
+        for (String key : mStaged.keySet()) {
+            flush(key);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory {@link RegistrationStore} built on {@link ConcurrentHashMap}s.
+ * Membership checks and updates are O(1) and only contend on the hash bins
+ * of the token and account involved, so registrations of different tokens
+ * proceed in parallel. Nothing is persisted.
+ */
+public class ConcurrentRegistrationStore implements RegistrationStore {
+
+    /**
+     * Stands in for the account of tokens that don't belong to one,
+     * since {@link ConcurrentHashMap} doesn't allow null values.
+     */
+    private static final String NO_ACCOUNT = "";
+
+    private final Map<String, String> mRegistrations = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> mAccounts = new ConcurrentHashMap<>();
+    private final Map<String, String> mNotificationKeys = new ConcurrentHashMap<>();
+
+    @Override
+    public void addRegistration(String regId, String accountName) {
+        mRegistrations.compute(regId, (token, previous) -> {
+            String account = accountName != null ? accountName : previous != null ? previous : NO_ACCOUNT;
+            if (previous != null && !previous.equals(account)) {
+                unlink(previous, token);
+            }
+            link(account, token);
+            return account;
+        });
+    }
+
+    @Override
+    public boolean removeRegistration(String regId) {
+        boolean[] removed = new boolean[1];
+        mRegistrations.computeIfPresent(regId, (token, account) -> {
+            unlink(account, token);
+            removed[0] = true;
+            return null;
+        });
+        return removed[0];
+    }
+
+    private void link(String account, String token) {
+        if (account.equals(NO_ACCOUNT)) {
+            return;
+        }
+        mAccounts.compute(account, (key, tokens) -> {
+            if (tokens == null) {
+                tokens = ConcurrentHashMap.newKeySet();
+            }
+            tokens.add(token);
+            return tokens;
+        });
+    }
+
+    private void unlink(String account, String token) {
+        if (account.equals(NO_ACCOUNT)) {
+            return;
+        }
+        mAccounts.computeIfPresent(account, (key, tokens) -> {
+            tokens.remove(token);
+            return tokens.isEmpty() ? null : tokens;
+        });
+    }
+
+    @Override
+    public boolean isRegistered(String regId) {
+        return mRegistrations.containsKey(regId);
+    }
+
+    @Override
+    public String getAccount(String regId) {
+        String account = mRegistrations.get(regId);
+        return account == null || account.equals(NO_ACCOUNT) ? null : account;
+    }
+
+    @Override
+    public int size() {
+        return mRegistrations.size();
+    }
+
+    @Override
+    public Iterator<String> registrationIds() {
+        return Collections.unmodifiableSet(mRegistrations.keySet()).iterator();
+    }
+
+    @Override
+    public Set<String> getAllRegistrationIds() {
+        return Collections.unmodifiableSet(new HashSet<>(mRegistrations.keySet()));
+    }
+
+    @Override
+    public Set<String> getAllRegistrationIdsForAccount(String account) {
+        Set<String> tokens = mAccounts.get(account);
+        if (tokens != null) {
+            return Collections.unmodifiableSet(new HashSet<>(tokens));
+        }
+        return null;
+    }
+
+    @Override
+    public Set<String> getAccounts() {
+        return Collections.unmodifiableSet(new HashSet<>(mAccounts.keySet()));
+    }
+
+    @Override
+    public String getNotificationKeyName(String accountName) {
+        return mNotificationKeys.get(accountName);
+    }
+
+    @Override
+    public void storeNotificationKeyName(String accountName, String notificationKeyName) {
+        mNotificationKeys.put(accountName, notificationKeyName);
+    }
+
+    /**
+     * Live view of the notification key names by account, used for snapshots.
+     */
+    Map<String, String> notificationKeyNames() {
+        return Collections.unmodifiableMap(mNotificationKeys);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+/**
+ * Point-in-time counters of one or more CCS connections.
+ */
+public class ConnectionStats {
+
+    private final int mConnections;
+    private final int mConnected;
+    private final int mInFlight;
+    private final int mQueued;
+    private final long mSent;
+    private final long mAcked;
+    private final long mNacked;
+
+    public ConnectionStats(int connections, int connected, int inFlight, int queued, long sent, long acked, long nacked) {
+        mConnections = connections;
+        mConnected = connected;
+        mInFlight = inFlight;
+        mQueued = queued;
+        mSent = sent;
+        mAcked = acked;
+        mNacked = nacked;
+    }
+
+    /**
+     * Sums up these stats with the given ones.
+     */
+    public ConnectionStats plus(ConnectionStats other) {
+        return new ConnectionStats(mConnections + other.mConnections, mConnected + other.mConnected,
+                mInFlight + other.mInFlight, mQueued + other.mQueued, mSent + other.mSent,
+                mAcked + other.mAcked, mNacked + other.mNacked);
+    }
+
+    public int getConnections() {
+        return mConnections;
+    }
+
+    public int getConnected() {
+        return mConnected;
+    }
+
+    public int getInFlight() {
+        return mInFlight;
+    }
+
+    public int getQueued() {
+        return mQueued;
+    }
+
+    public long getSent() {
+        return mSent;
+    }
+
+    public long getAcked() {
+        return mAcked;
+    }
+
+    public long getNacked() {
+        return mNacked;
+    }
+
+    @Override
+    public String toString() {
+        return "connections=" + mConnections + " connected=" + mConnected + " inFlight=" + mInFlight
+                + " queued=" + mQueued + " sent=" + mSent + " acked=" + mAcked + " nacked=" + mNacked;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.JsonReader;
+import com.squareup.moshi.JsonWriter;
+import okio.Buffer;
+import okio.Okio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Collection;
+
+/**
+ * Client of the FCM device group API, which manages notification keys: one key
+ * addresses all registration tokens of a group, so a single downstream message
+ * reaches every device of an account.
+ * https://firebase.google.com/docs/cloud-messaging/android/device-group
+ */
+public class DeviceGroupClient {
+
+    public static final String DEFAULT_URL = "https://fcm.googleapis.com/fcm/notification";
+
+    /**
+     * Maximum number of registration tokens in a group.
+     */
+    public static final int MAX_GROUP_SIZE = 20;
+
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private final String mUrl;
+    private final String mSenderId;
+    private final String mServerKey;
+
+    /**
+     * @param url the API's URL, {@link #DEFAULT_URL} or a local stand-in
+     */
+    public DeviceGroupClient(String url, String senderId, String serverKey) {
+        mUrl = url;
+        mSenderId = senderId;
+        mServerKey = serverKey;
+    }
+
+    /**
+     * Creates a group with the tokens.
+     *
+     * @return the group's notification key
+     */
+    public String create(String notificationKeyName, Collection<String> registrationIds) throws IOException {
+        return post("create", notificationKeyName, null, registrationIds);
+    }
+
+    public void add(String notificationKeyName, String notificationKey, Collection<String> registrationIds)
+            throws IOException {
+        post("add", notificationKeyName, notificationKey, registrationIds);
+    }
+
+    /**
+     * Removes tokens from the group. FCM deletes the group once its last token is removed.
+     */
+    public void remove(String notificationKeyName, String notificationKey, Collection<String> registrationIds)
+            throws IOException {
+        post("remove", notificationKeyName, notificationKey, registrationIds);
+    }
+
+    /**
+     * @return the notification key of the group or null if there is no such group
+     */
+    public String getNotificationKey(String notificationKeyName) throws IOException {
+        HttpURLConnection connection = open(new URL(mUrl + "?notification_key_name="
+                + URLEncoder.encode(notificationKeyName, "UTF-8")));
+        int status = connection.getResponseCode();
+        if (status == HttpURLConnection.HTTP_BAD_REQUEST || status == HttpURLConnection.HTTP_NOT_FOUND) {
+            InputStream error = connection.getErrorStream();
+            if (error != null) {
+                error.close();
+            }
+            return null;
+        }
+        return readNotificationKey(connection, status);
+    }
+
+    private String post(String operation, String notificationKeyName, String notificationKey,
+                        Collection<String> registrationIds) throws IOException {
+        Buffer body = new Buffer();
+        JsonWriter writer = JsonWriter.of(body);
+        writer.beginObject();
+        writer.name("operation").value(operation);
+        writer.name("notification_key_name").value(notificationKeyName);
+        if (notificationKey != null) {
+            writer.name("notification_key").value(notificationKey);
+        }
+        writer.name("registration_ids").beginArray();
+        for (String registrationId : registrationIds) {
+            writer.value(registrationId);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.close();
+
+        HttpURLConnection connection = open(new URL(mUrl));
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        try (OutputStream out = connection.getOutputStream()) {
+            body.writeTo(out);
+        }
+        return readNotificationKey(connection, connection.getResponseCode());
+    }
+
+    private HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestProperty("Authorization", "key=" + mServerKey);
+        connection.setRequestProperty("project_id", mSenderId);
+        return connection;
+    }
+
+    private static String readNotificationKey(HttpURLConnection connection, int status) throws IOException {
+        boolean success = status == HttpURLConnection.HTTP_OK;
+        String notificationKey = null;
+        String error = null;
+        try (InputStream in = success ? connection.getInputStream() : connection.getErrorStream()) {
+            if (in != null) {
+                JsonReader reader = JsonReader.of(Okio.buffer(Okio.source(in)));
+                if (reader.peek() == JsonReader.Token.BEGIN_OBJECT) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if ("notification_key".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                            notificationKey = reader.nextString();
+                        }
+                        else if ("error".equals(name) && reader.peek() == JsonReader.Token.STRING) {
+                            error = reader.nextString();
+                        }
+                        else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+            }
+        }
+        catch (IOException e) {
+            // Error responses aren't always JSON, the status is reported below
+            if (success) {
+                throw e;
+            }
+        }
+        if (!success) {
+            throw new IOException("Device group request failed with HTTP " + status + (error != null ? ": " + error : ""));
+        }
+        return notificationKey;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Keeps a device group per account in sync with the account's registration tokens,
+ * so messages to all devices of an account can be sent as one message to the
+ * group's notification key.
+ * <br>
+ * Registration changes made through {@link #getSyncingStore()} are applied to the
+ * groups in the background, one account at a time. Until the group of an account
+ * reflects the latest change, {@link #getNotificationKey(String)} returns null and
+ * callers send to the tokens one by one instead. The same happens if the account
+ * has more tokens than a group can hold or the device group API fails.
+ * <br>
+ * Notification key names are kept in the {@link RegistrationStore}. The members of
+ * a group aren't, so after a restart the first update of an account creates a new
+ * group under a fresh name and the old group isn't addressed anymore.
+ */
+public class DeviceGroupManager {
+
+    private static final String KEY_NAME_PREFIX = "fcmappserver-";
+
+    private static final class Group {
+        final AtomicInteger mChanges = new AtomicInteger();
+        final AtomicBoolean mQueued = new AtomicBoolean();
+        volatile int mSyncedChanges = -1;
+        volatile String mKey;
+        volatile boolean mUsable;
+        /**
+         * Tokens known to be in the group, only accessed by the sync thread.
+         */
+        Set<String> mMembers = Collections.emptySet();
+    }
+
+    private final DeviceGroupClient mClient;
+    private final RegistrationStore mStore;
+    private final RegistrationStore mSyncingStore;
+    private final Map<String, Group> mGroups = new ConcurrentHashMap<>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "device-groups");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DeviceGroupManager(DeviceGroupClient client, RegistrationStore store) {
+        mClient = client;
+        mStore = store;
+        mSyncingStore = new SyncingStore();
+    }
+
+    /**
+     * The store with which registration changes update the groups. Use it in place of
+     * the store passed to the constructor.
+     */
+    public RegistrationStore getSyncingStore() {
+        return mSyncingStore;
+    }
+
+    /**
+     * @return the notification key addressing all of the account's tokens, or null if
+     * messages have to be sent to the tokens one by one
+     */
+    public String getNotificationKey(String account) {
+        Group group = mGroups.get(account);
+        if (group == null) {
+            // Nothing known about the account since the start, look up its group for next time
+            sync(account);
+            return null;
+        }
+        if (group.mSyncedChanges != group.mChanges.get()) {
+            schedule(account, group);
+            return null;
+        }
+        return group.mUsable ? group.mKey : null;
+    }
+
+    /**
+     * Updates the account's group in the background.
+     */
+    public void sync(String account) {
+        Group group = mGroups.computeIfAbsent(account, key -> new Group());
+        group.mChanges.incrementAndGet();
+        schedule(account, group);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private void schedule(String account, Group group) {
+        if (group.mQueued.compareAndSet(false, true)) {
+            mExecutor.execute(() -> {
+                // Changes made from here on schedule another run
+                group.mQueued.set(false);
+                int changes = group.mChanges.get();
+                try {
+                    update(account, group);
+                    group.mSyncedChanges = changes;
+                }
+                catch (IOException | RuntimeException e) {
+                    logger.log(Level.WARNING, "Failed to update the device group of account " + account, e);
+                }
+            });
+        }
+    }
+
+    private void update(String account, Group group) throws IOException {
+        Set<String> tokens = mStore.getAllRegistrationIdsForAccount(account);
+        if (tokens == null) {
+            tokens = Collections.emptySet();
+        }
+        if (tokens.size() > DeviceGroupClient.MAX_GROUP_SIZE) {
+            group.mUsable = false;
+            return;
+        }
+        String name = mStore.getNotificationKeyName(account);
+        if (group.mKey == null) {
+            if (!tokens.isEmpty()) {
+                // The members of a group created before a restart are unknown, so tokens removed
+                // meanwhile can't be removed from it. A new group replaces it instead.
+                name = KEY_NAME_PREFIX + account + "-" + System.currentTimeMillis();
+                group.mKey = mClient.create(name, tokens);
+                mStore.storeNotificationKeyName(account, name);
+                group.mMembers = tokens;
+            }
+            group.mUsable = group.mKey != null;
+            return;
+        }
+        Set<String> added = new HashSet<>(tokens);
+        added.removeAll(group.mMembers);
+        Set<String> removed = new HashSet<>(group.mMembers);
+        removed.removeAll(tokens);
+        if (!added.isEmpty()) {
+            mClient.add(name, group.mKey, added);
+        }
+        if (!removed.isEmpty()) {
+            mClient.remove(name, group.mKey, removed);
+        }
+        if (tokens.isEmpty()) {
+            // FCM deletes a group without members, a new one is created for the next token
+            group.mKey = null;
+        }
+        group.mMembers = tokens;
+        group.mUsable = group.mKey != null;
+    }
+
+    /**
+     * Forwards to the actual store and schedules an update of the groups of the accounts
+     * a change affects.
+     */
+    private final class SyncingStore implements RegistrationStore {
+
+        @Override
+        public void addRegistration(String regId, String accountName) {
+            String previousAccount = mStore.getAccount(regId);
+            mStore.addRegistration(regId, accountName);
+            String account = mStore.getAccount(regId);
+            if (previousAccount != null && !previousAccount.equals(account)) {
+                sync(previousAccount);
+            }
+            if (account != null && !account.equals(previousAccount)) {
+                sync(account);
+            }
+        }
+
+        @Override
+        public boolean removeRegistration(String regId) {
+            String account = mStore.getAccount(regId);
+            boolean removed = mStore.removeRegistration(regId);
+            if (removed && account != null) {
+                sync(account);
+            }
+            return removed;
+        }
+
+        @Override
+        public boolean isRegistered(String regId) {
+            return mStore.isRegistered(regId);
+        }
+
+        @Override
+        public String getAccount(String regId) {
+            return mStore.getAccount(regId);
+        }
+
+        @Override
+        public int size() {
+            return mStore.size();
+        }
+
+        @Override
+        public Iterator<String> registrationIds() {
+            return mStore.registrationIds();
+        }
+
+        @Override
+        public Set<String> getAllRegistrationIds() {
+            return mStore.getAllRegistrationIds();
+        }
+
+        @Override
+        public Set<String> getAllRegistrationIdsForAccount(String account) {
+            return mStore.getAllRegistrationIdsForAccount(account);
+        }
+
+        @Override
+        public Set<String> getAccounts() {
+            return mStore.getAccounts();
+        }
+
+        @Override
+        public String getNotificationKeyName(String accountName) {
+            return mStore.getNotificationKeyName(accountName);
+        }
+
+        @Override
+        public void storeNotificationKeyName(String accountName, String notificationKeyName) {
+            mStore.storeNotificationKeyName(accountName, notificationKeyName);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Sends the downstream messages of a {@link Flow.Publisher} through {@link CcsClient#sendAsync},
+ * requesting no more messages than the connections' in-flight windows have room for.
+ * <br>
+ * The subscriber keeps as many messages outstanding as the windows of the open connections
+ * hold, and requests another message whenever CCS acks or finally nacks one. While no
+ * connection is open it stops requesting and checks again periodically, so a disconnect
+ * pauses the publisher instead of failing its messages.
+ * <br>
+ * Messages that can't be sent are logged and counted, responses reach the client's
+ * {@link CcsClient#addResponseListener response listeners}.
+ */
+public class DownstreamSubscriber implements Flow.Subscriber<DownstreamMessage.Request> {
+
+    private static final long RECONNECT_CHECK_MILLIS = 100;
+
+    private final CcsClient mClient;
+    private final CompletableFuture<Void> mCompletion = new CompletableFuture<>();
+    private final LongAdder mSent = new LongAdder();
+    private final LongAdder mFailed = new LongAdder();
+    private Flow.Subscription mSubscription;
+    /**
+     * Messages handed to the client and not acked or finally nacked yet.
+     */
+    private long mOutstanding;
+    /**
+     * Messages requested from the publisher and not received yet.
+     */
+    private long mRequested;
+    private boolean mPublisherDone;
+    private Throwable mPublisherError;
+    private boolean mCheckScheduled;
+
+    public DownstreamSubscriber(CcsClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        synchronized (this) {
+            if (mSubscription != null) {
+                subscription.cancel();
+                return;
+            }
+            mSubscription = subscription;
+        }
+        requestMore();
+    }
+
+    @Override
+    public void onNext(DownstreamMessage.Request item) {
+        synchronized (this) {
+            mRequested--;
+            mOutstanding++;
+        }
+        CompletableFuture<DownstreamMessage.Response> future;
+        try {
+            future = mClient.sendAsync(item);
+        }
+        catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        future.whenComplete((response, error) -> {
+            if (error != null) {
+                mFailed.increment();
+                logger.log(Level.WARNING, "Failed to send message " + item.getMessageId(), error);
+            }
+            else {
+                mSent.increment();
+            }
+            synchronized (this) {
+                mOutstanding--;
+            }
+            requestMore();
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        synchronized (this) {
+            mPublisherDone = true;
+            mPublisherError = throwable;
+        }
+        requestMore();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            mPublisherDone = true;
+        }
+        requestMore();
+    }
+
+    /**
+     * Cancels the subscription, messages already sent are still tracked until they complete.
+     */
+    public void cancel() {
+        Flow.Subscription subscription;
+        synchronized (this) {
+            subscription = mSubscription;
+            mPublisherDone = true;
+        }
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        requestMore();
+    }
+
+    /**
+     * @return a future completed once the publisher completed or failed, or the subscription was
+     * cancelled, and all messages sent were acked or finally nacked. It fails with the
+     * publisher's error.
+     */
+    public CompletableFuture<Void> getCompletion() {
+        return mCompletion;
+    }
+
+    /**
+     * Number of messages CCS acked or finally nacked.
+     */
+    public long getSentCount() {
+        return mSent.sum();
+    }
+
+    /**
+     * Number of messages that couldn't be sent.
+     */
+    public long getFailedCount() {
+        return mFailed.sum();
+    }
+
+    /**
+     * Requests as many messages as fit into the free window slots, or completes once the
+     * publisher is done and nothing is outstanding.
+     */
+    private void requestMore() {
+        long n;
+        boolean scheduleCheck = false;
+        Flow.Subscription subscription;
+        synchronized (this) {
+            subscription = mSubscription;
+            if (mPublisherDone) {
+                if (mOutstanding == 0) {
+                    if (mPublisherError != null) {
+                        mCompletion.completeExceptionally(mPublisherError);
+                    }
+                    else {
+                        mCompletion.complete(null);
+                    }
+                }
+                return;
+            }
+            if (subscription == null) {
+                return;
+            }
+            int capacity = mClient.getWindowCapacity();
+            if (capacity == 0 && mOutstanding == 0 && mRequested == 0 && !mCheckScheduled) {
+                // Not connected, nothing else calls back once a connection is open
+                mCheckScheduled = true;
+                scheduleCheck = true;
+            }
+            n = capacity - mOutstanding - mRequested;
+            if (n > 0) {
+                mRequested += n;
+            }
+        }
+        if (scheduleCheck) {
+            CompletableFuture.delayedExecutor(RECONNECT_CHECK_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+                synchronized (this) {
+                    mCheckScheduled = false;
+                }
+                requestMore();
+            });
+        }
+        if (n > 0) {
+            subscription.request(n);
+        }
+    }
+}
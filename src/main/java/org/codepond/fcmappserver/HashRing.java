@@ -0,0 +1,107 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring mapping keys to the nodes of a cluster. Every node is placed
+ * on the ring many times, so keys spread evenly and adding or removing a node only
+ * moves the keys of that node.
+ * <br>
+ * The ring is immutable, lookups are a binary search over a sorted array.
+ */
+public final class HashRing {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final long[] mPoints;
+    private final String[] mOwners;
+    private final List<String> mNodes;
+
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * @param virtualNodes number of places of every node on the ring
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one node");
+        }
+        mNodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        int count = mNodes.size() * virtualNodes;
+        long[] points = new long[count];
+        String[] owners = new String[count];
+        // Sort the points and their owners together through an index array
+        Integer[] order = new Integer[count];
+        for (int n = 0; n < mNodes.size(); n++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                int i = n * virtualNodes + v;
+                points[i] = hash(mNodes.get(n) + "#" + v);
+                owners[i] = mNodes.get(n);
+                order[i] = i;
+            }
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(points[a], points[b]));
+        mPoints = new long[count];
+        mOwners = new String[count];
+        for (int i = 0; i < count; i++) {
+            mPoints[i] = points[order[i]];
+            mOwners[i] = owners[order[i]];
+        }
+    }
+
+    public List<String> getNodes() {
+        return mNodes;
+    }
+
+    /**
+     * @return the node owning the key: the first node clockwise from the key's hash
+     */
+    public String ownerOf(String key) {
+        int index = Arrays.binarySearch(mPoints, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+            if (index == mPoints.length) {
+                index = 0;
+            }
+        }
+        return mOwners[index];
+    }
+
+    /**
+     * FNV-1a finished with the MurmurHash3 mixer, which spreads similar keys over the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the downstream messages of a single CCS connection that have not been
+ * acknowledged yet. CCS allows at most 100 unacknowledged messages per connection,
+ * so once the window is full any further message is queued and only transmitted
+ * when an ack or nack frees up a slot.
+ * <br>
+ * Queued messages wait in the queue of their {@link Lane}. A freed slot goes to the lanes by
+ * smooth weighted round robin: every waiting lane earns its weight, the lane with the most
+ * credit gets the slot and pays the sum of the waiting lanes' weights. Lanes share the slots
+ * in proportion to their weights and a lane's turns are spread out evenly.
+ */
+class InFlightWindow {
+
+    /**
+     * Writes a message to the connection once it got a slot in the window.
+     */
+    interface Transmitter {
+        void transmit(PendingMessage message);
+    }
+
+    private final int mCapacity;
+    private final Transmitter mTransmitter;
+    private final Map<String, PendingMessage> mInFlight = new ConcurrentHashMap<>();
+    private final Lanes mQueued = new Lanes();
+    private int mAvailable;
+
+    InFlightWindow(int capacity, Transmitter transmitter) {
+        mCapacity = capacity;
+        mTransmitter = transmitter;
+        mAvailable = capacity;
+    }
+
+    /**
+     * Transmits the message right away if there is a free slot, otherwise queues it.
+     */
+    void submit(PendingMessage message) {
+        synchronized (this) {
+            if (mInFlight.containsKey(message.getMessageId())) {
+                message.getFuture().completeExceptionally(new IllegalStateException(
+                        "Message " + message.getMessageId() + " is already in flight"));
+                return;
+            }
+            if (mAvailable == 0) {
+                mQueued.add(message);
+                return;
+            }
+            mAvailable--;
+            mInFlight.put(message.getMessageId(), message);
+        }
+        mTransmitter.transmit(message);
+    }
+
+    /**
+     * Releases the slot held by the given message and transmits the next queued message, if any.
+     *
+     * @return the released message or null if no message with this id is in flight
+     */
+    PendingMessage release(String messageId) {
+        PendingMessage message;
+        PendingMessage next;
+        synchronized (this) {
+            message = mInFlight.remove(messageId);
+            if (message == null) {
+                return null;
+            }
+            next = mQueued.poll();
+            if (next == null) {
+                mAvailable++;
+            }
+            else {
+                mInFlight.put(next.getMessageId(), next);
+            }
+        }
+        if (next != null) {
+            mTransmitter.transmit(next);
+        }
+        return message;
+    }
+
+    /**
+     * Fails every in-flight and queued message, e.g. because the connection was lost
+     * and CCS won't ack them anymore. Call {@link #removeQueued()} first to keep the
+     * queued messages.
+     */
+    void failAll(Throwable cause) {
+        for (PendingMessage message : removeAll()) {
+            message.getFuture().completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Removes every in-flight and queued message from the window without completing it,
+     * so it can be sent through another connection.
+     */
+    synchronized List<PendingMessage> removeAll() {
+        List<PendingMessage> removed = new ArrayList<>(mInFlight.values());
+        mQueued.drainTo(removed);
+        mInFlight.clear();
+        mAvailable = mCapacity;
+        return removed;
+    }
+
+    /**
+     * Removes the messages that are waiting for a slot and haven't been sent yet.
+     */
+    synchronized List<PendingMessage> removeQueued() {
+        List<PendingMessage> removed = new ArrayList<>(mQueued.size());
+        mQueued.drainTo(removed);
+        return removed;
+    }
+
+    int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueued.size();
+    }
+
+    /**
+     * Queues of the lanes, guarded by the window's lock.
+     */
+    private static final class Lanes {
+        private static final Lane[] LANES = Lane.values();
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private final ArrayDeque<PendingMessage>[] mQueues = new ArrayDeque[LANES.length];
+        private final int[] mCredits = new int[LANES.length];
+        private int mSize;
+
+        Lanes() {
+            for (int i = 0; i < LANES.length; i++) {
+                mQueues[i] = new ArrayDeque<>();
+            }
+        }
+
+        void add(PendingMessage message) {
+            mQueues[message.getLane().ordinal()].add(message);
+            mSize++;
+        }
+
+        PendingMessage poll() {
+            if (mSize == 0) {
+                return null;
+            }
+            int selected = -1;
+            int totalWeight = 0;
+            for (int i = 0; i < LANES.length; i++) {
+                if (mQueues[i].isEmpty()) {
+                    // A lane doesn't save up credit while it has nothing to send
+                    mCredits[i] = 0;
+                    continue;
+                }
+                int weight = LANES[i].getWeight();
+                mCredits[i] += weight;
+                totalWeight += weight;
+                if (selected < 0 || mCredits[i] > mCredits[selected]) {
+                    selected = i;
+                }
+            }
+            mCredits[selected] -= totalWeight;
+            mSize--;
+            return mQueues[selected].poll();
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * Moves all queued messages to the list, most urgent lane first.
+         */
+        void drainTo(List<PendingMessage> list) {
+            for (int i = 0; i < LANES.length; i++) {
+                list.addAll(mQueues[i]);
+                mQueues[i].clear();
+                mCredits[i] = 0;
+            }
+            mSize = 0;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+/**
+ * Outbound lanes, from most to least urgent. Messages waiting for a slot in a connection's
+ * in-flight window are queued per lane, and freed slots go to the lanes in proportion to their
+ * weight, so urgent messages overtake bulk sends without starving them.
+ */
+public enum Lane {
+    /**
+     * Acks of upstream messages and other control stanzas. Acks don't take a window slot,
+     * they are written to the connection right away.
+     */
+    CONTROL(256),
+    /**
+     * Messages with {@link DownstreamMessage.Request#PRIORITY_HIGH high} priority.
+     */
+    HIGH(64),
+    NORMAL(8),
+    /**
+     * Broadcasts and other mass sends.
+     */
+    BULK(1);
+
+    private final int mWeight;
+
+    Lane(int weight) {
+        mWeight = weight;
+    }
+
+    /**
+     * Share of the freed window slots the lane gets while other lanes are waiting too.
+     */
+    int getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * @return the lane of a message with the FCM priority
+     */
+    public static Lane forPriority(String priority) {
+        return DownstreamMessage.Request.PRIORITY_HIGH.equals(priority) ? HIGH : NORMAL;
+    }
+}
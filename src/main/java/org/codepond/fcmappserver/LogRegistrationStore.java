@@ -0,0 +1,392 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Durable {@link RegistrationStore}. All state is held in a {@link ConcurrentRegistrationStore}
+ * and every change is appended to a memory-mapped {@link RegistrationLog} before it is applied.
+ * <br>
+ * The log is periodically compacted into a snapshot file named {@code snapshot-<index>.dat},
+ * where the index is the first log segment written after the snapshot was started. On startup
+ * the latest snapshot is loaded and the segments from that index on are replayed on top of it.
+ * Replaying an event that is already part of the snapshot is harmless since every event sets
+ * the final state of its token or account.
+ * <br>
+ * Appended events reach the page cache immediately, so they survive a crash of the process.
+ * They are forced to disk once a second, so an OS crash may lose the last second of changes.
+ */
+public class LogRegistrationStore implements RegistrationStore, Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final int SNAPSHOT_MAGIC = 0x46434d53;
+    private static final int STRIPES = 64;
+
+    private final File mDirectory;
+    private final ConcurrentRegistrationStore mState = new ConcurrentRegistrationStore();
+    private final RegistrationLog mLog;
+    /**
+     * Orders the log append and the in-memory update of events on the same key.
+     */
+    private final Object[] mStripes = new Object[STRIPES];
+    /**
+     * Held shared by every change and exclusively while compaction switches segments,
+     * so that each event in the old segments is already applied when the snapshot starts.
+     */
+    private final ReadWriteLock mRollLock = new ReentrantReadWriteLock();
+    private final Object mCompactionLock = new Object();
+    private final ScheduledExecutorService mScheduler;
+    private volatile boolean mChangedSinceSnapshot;
+
+    /**
+     * Opens the store in the given directory with the default segment size and
+     * compacts it every 10 minutes.
+     */
+    public LogRegistrationStore(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, 10, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Opens the store, loading the latest snapshot and replaying the log written after it.
+     *
+     * @param segmentSize size of each log segment file in bytes
+     * @param compactionInterval how often the log is compacted into a snapshot, 0 to only compact on {@link #compact()}
+     */
+    public LogRegistrationStore(File directory, int segmentSize, long compactionInterval, TimeUnit unit) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Object();
+        }
+
+        long start = System.nanoTime();
+        long snapshot = latestSnapshot();
+        if (snapshot >= 0) {
+            loadSnapshot(snapshotFile(snapshot));
+        }
+        long nextSegment = Math.max(snapshot, 0);
+        int replayed = 0;
+        for (long segment : RegistrationLog.segments(directory)) {
+            if (segment >= snapshot) {
+                RegistrationLog.replay(RegistrationLog.segmentFile(directory, segment), this::apply);
+                replayed++;
+            }
+            nextSegment = segment + 1;
+        }
+        logger.log(Level.INFO, "Loaded " + mState.size() + " registrations from " + directory + " in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+
+        mLog = new RegistrationLog(directory, segmentSize, nextSegment);
+        mChangedSinceSnapshot = replayed > 0;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "registration-log");
+            thread.setDaemon(true);
+            return thread;
+        });
+        mScheduler.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+        if (compactionInterval > 0) {
+            // Compact right away if the log had to be replayed, so the next startup is faster
+            mScheduler.scheduleWithFixedDelay(this::compactQuietly, 0, compactionInterval, unit);
+        }
+    }
+
+    private void apply(byte type, String first, String second) {
+        switch (type) {
+            case RegistrationLog.ADD:
+                mState.addRegistration(first, second);
+                break;
+            case RegistrationLog.REMOVE:
+                mState.removeRegistration(first);
+                break;
+            case RegistrationLog.NOTIFICATION_KEY_NAME:
+                mState.storeNotificationKeyName(first, second);
+                break;
+        }
+    }
+
+    private Object stripe(String key) {
+        return mStripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    @Override
+    public void addRegistration(String regId, String accountName) {
+        mRollLock.readLock().lock();
+        try {
+            synchronized (stripe(regId)) {
+                mLog.append(RegistrationLog.ADD, regId, accountName);
+                mState.addRegistration(regId, accountName);
+            }
+        }
+        finally {
+            mRollLock.readLock().unlock();
+        }
+        mChangedSinceSnapshot = true;
+    }
+
+    @Override
+    public boolean removeRegistration(String regId) {
+        if (!mState.isRegistered(regId)) {
+            return false;
+        }
+        boolean removed;
+        mRollLock.readLock().lock();
+        try {
+            synchronized (stripe(regId)) {
+                mLog.append(RegistrationLog.REMOVE, regId, null);
+                removed = mState.removeRegistration(regId);
+            }
+        }
+        finally {
+            mRollLock.readLock().unlock();
+        }
+        mChangedSinceSnapshot = true;
+        return removed;
+    }
+
+    @Override
+    public void storeNotificationKeyName(String accountName, String notificationKeyName) {
+        mRollLock.readLock().lock();
+        try {
+            synchronized (stripe(accountName)) {
+                mLog.append(RegistrationLog.NOTIFICATION_KEY_NAME, accountName, notificationKeyName);
+                mState.storeNotificationKeyName(accountName, notificationKeyName);
+            }
+        }
+        finally {
+            mRollLock.readLock().unlock();
+        }
+        mChangedSinceSnapshot = true;
+    }
+
+    @Override
+    public boolean isRegistered(String regId) {
+        return mState.isRegistered(regId);
+    }
+
+    @Override
+    public String getAccount(String regId) {
+        return mState.getAccount(regId);
+    }
+
+    @Override
+    public int size() {
+        return mState.size();
+    }
+
+    @Override
+    public Iterator<String> registrationIds() {
+        return mState.registrationIds();
+    }
+
+    @Override
+    public Set<String> getAllRegistrationIds() {
+        return mState.getAllRegistrationIds();
+    }
+
+    @Override
+    public Set<String> getAllRegistrationIdsForAccount(String account) {
+        return mState.getAllRegistrationIdsForAccount(account);
+    }
+
+    @Override
+    public Set<String> getAccounts() {
+        return mState.getAccounts();
+    }
+
+    @Override
+    public String getNotificationKeyName(String accountName) {
+        return mState.getNotificationKeyName(accountName);
+    }
+
+    /**
+     * Forces the appended events to disk.
+     */
+    public void flush() {
+        mLog.flush();
+    }
+
+    /**
+     * Writes a snapshot of the current state and deletes the log segments and
+     * snapshots it supersedes.
+     */
+    public void compact() throws IOException {
+        synchronized (mCompactionLock) {
+            if (!mChangedSinceSnapshot) {
+                return;
+            }
+            long start = System.nanoTime();
+            long segment;
+            mRollLock.writeLock().lock();
+            try {
+                segment = mLog.roll();
+                mChangedSinceSnapshot = false;
+            }
+            finally {
+                mRollLock.writeLock().unlock();
+            }
+
+            File snapshot = snapshotFile(segment);
+            File temp = new File(mDirectory, snapshot.getName() + ".tmp");
+            int count;
+            try {
+                count = writeSnapshot(temp);
+                Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException e) {
+                mChangedSinceSnapshot = true;
+                throw e;
+            }
+
+            for (long old : RegistrationLog.segments(mDirectory)) {
+                if (old < segment) {
+                    Files.delete(RegistrationLog.segmentFile(mDirectory, old).toPath());
+                }
+            }
+            for (long old : snapshots()) {
+                if (old < segment) {
+                    Files.delete(snapshotFile(old).toPath());
+                }
+            }
+            logger.log(Level.INFO, "Compacted " + count + " registrations in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        }
+        catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to compact the registration log", e);
+        }
+    }
+
+    private int writeSnapshot(File file) throws IOException {
+        int count = 0;
+        try (FileOutputStream fileStream = new FileOutputStream(file);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileStream, 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            Iterator<String> tokens = mState.registrationIds();
+            while (tokens.hasNext()) {
+                String token = tokens.next();
+                String account = mState.getAccount(token);
+                out.writeBoolean(true);
+                out.writeUTF(token);
+                out.writeBoolean(account != null);
+                if (account != null) {
+                    out.writeUTF(account);
+                }
+                count++;
+            }
+            out.writeBoolean(false);
+            for (Map.Entry<String, String> entry : mState.notificationKeyNames().entrySet()) {
+                out.writeBoolean(true);
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getValue());
+            }
+            out.writeBoolean(false);
+            out.flush();
+            fileStream.getFD().sync();
+        }
+        return count;
+    }
+
+    private void loadSnapshot(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(file + " is not a registration snapshot");
+            }
+            while (in.readBoolean()) {
+                String token = in.readUTF();
+                mState.addRegistration(token, in.readBoolean() ? in.readUTF() : null);
+            }
+            while (in.readBoolean()) {
+                mState.storeNotificationKeyName(in.readUTF(), in.readUTF());
+            }
+        }
+    }
+
+    private File snapshotFile(long segment) {
+        return new File(mDirectory, String.format("%s%016d%s", SNAPSHOT_PREFIX, segment, SNAPSHOT_SUFFIX));
+    }
+
+    private List<Long> snapshots() {
+        List<Long> snapshots = new ArrayList<>();
+        String[] names = mDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX)) {
+                    snapshots.add(Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(),
+                            name.length() - SNAPSHOT_SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(snapshots);
+        return snapshots;
+    }
+
+    private long latestSnapshot() {
+        List<Long> snapshots = snapshots();
+        return snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+    }
+
+    /**
+     * Stops the background flushing and compaction and forces the log to disk.
+     */
+    @Override
+    public void close() {
+        mScheduler.shutdown();
+        try {
+            mScheduler.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
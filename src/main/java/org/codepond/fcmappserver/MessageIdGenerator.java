@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates downstream message ids of the form {@code <node>-<epoch>-<sequence>}, with
+ * epoch and sequence in base 36. The node id tells app server instances apart, the epoch
+ * is the time the generator was created in milliseconds and sets restarts of the same
+ * node apart, and the sequence counts up within one run. Ids are therefore unique as long
+ * as every instance has its own node id and the clock doesn't go back across a restart.
+ * <br>
+ * Generating an id is lock-free and allocates nothing but the returned string.
+ */
+public class MessageIdGenerator {
+
+    private static final char[] DIGITS = "0123456789abcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final int MAX_SEQUENCE_DIGITS = 13;
+
+    private final char[] mPrefix;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ThreadLocal<char[]> mBuffer;
+
+    /**
+     * @param nodeId id of this app server instance, made of letters and digits only
+     */
+    public MessageIdGenerator(String nodeId) {
+        this(nodeId, System.currentTimeMillis());
+    }
+
+    MessageIdGenerator(String nodeId, long epoch) {
+        if (nodeId.isEmpty()) {
+            throw new IllegalArgumentException("Node id must not be empty");
+        }
+        for (int i = 0; i < nodeId.length(); i++) {
+            if (!Character.isLetterOrDigit(nodeId.charAt(i))) {
+                throw new IllegalArgumentException("Node id must only contain letters and digits: " + nodeId);
+            }
+        }
+        mPrefix = (nodeId + "-" + Long.toString(epoch, 36) + "-").toCharArray();
+        int length = mPrefix.length + MAX_SEQUENCE_DIGITS;
+        mBuffer = ThreadLocal.withInitial(() -> {
+            char[] buffer = new char[length];
+            System.arraycopy(mPrefix, 0, buffer, 0, mPrefix.length);
+            return buffer;
+        });
+    }
+
+    /**
+     * Derives a node id from the process id and host name. Instances running on the same
+     * host at the same time get different ids, but it's safer to configure one explicitly.
+     */
+    public static String defaultNodeId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        return Long.toString(name.hashCode() & 0xffffffffL, 36);
+    }
+
+    public String nextId() {
+        long sequence = mSequence.incrementAndGet();
+        char[] buffer = mBuffer.get();
+        int digits = 1;
+        for (long rest = sequence / 36; rest > 0; rest /= 36) {
+            digits++;
+        }
+        int end = mPrefix.length + digits;
+        for (int i = end - 1; i >= mPrefix.length; i--) {
+            buffer[i] = DIGITS[(int) (sequence % 36)];
+            sequence /= 36;
+        }
+        return new String(buffer, 0, end);
+    }
+}
@@ -27,11 +27,17 @@ import org.codepond.fcmappserver.messages.UpstreamMessage;
  */
 public class MessageProcessor implements PayloadProcessor {
 
+    public static final String ACTION = "org.codepond.fcmappserver.MESSAGE";
+
     @Override
     public void handleMessage(UpstreamMessage.Request msg) {
-        PseudoDao dao = PseudoDao.getInstance();
         CcsClient client = CcsClient.getInstance();
-        String msgId = dao.getUniqueMessageId();
+        String msgId = client.getMessageIdGenerator().nextId();
+    }
+
+    @Override
+    public String getAction() {
+        return ACTION;
     }
 
 }
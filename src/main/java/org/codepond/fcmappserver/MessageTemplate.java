@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A downstream message whose payload is shared by many recipients, as in a broadcast.
+ * The payload is encoded once when the template is created, sending it to a recipient
+ * only encodes the recipient and the message id, see
+ * {@link CcsClient#sendAsync(String, String, MessageTemplate)}.
+ */
+public final class MessageTemplate {
+
+    private final Map<String, String> mData;
+    private final String mCollapseKey;
+    private final String mPriority;
+    private final Integer mTimeToLive;
+    private final String mEncoded;
+
+    public MessageTemplate(Map<String, String> data) {
+        this(data, null);
+    }
+
+    /**
+     * @param data the payload, copied so later changes to the map don't affect the template
+     * @param collapseKey the collapse key of every message or null
+     */
+    public MessageTemplate(Map<String, String> data, String collapseKey) {
+        this(data, collapseKey, null, null);
+    }
+
+    /**
+     * @param priority the FCM priority of every message or null, see {@link DownstreamMessage.Request#getPriority()}
+     * @param timeToLive seconds FCM keeps every message for an offline device or null for the default
+     */
+    public MessageTemplate(Map<String, String> data, String collapseKey, String priority, Integer timeToLive) {
+        mData = data != null ? Collections.unmodifiableMap(new LinkedHashMap<>(data)) : null;
+        mCollapseKey = collapseKey;
+        mPriority = priority;
+        mTimeToLive = timeToLive;
+        mEncoded = StanzaEncoder.encodeTemplate(collapseKey, priority, timeToLive, mData);
+    }
+
+    public Map<String, String> getData() {
+        return mData;
+    }
+
+    public String getCollapseKey() {
+        return mCollapseKey;
+    }
+
+    public String getPriority() {
+        return mPriority;
+    }
+
+    public Integer getTimeToLive() {
+        return mTimeToLive;
+    }
+
+    /**
+     * @return the message to the recipient as a request, for paths that need one
+     */
+    public DownstreamMessage.Request toRequest(String to, String messageId) {
+        return new DownstreamMessage.Request(to, messageId, mData, mCollapseKey, mPriority, mTimeToLive);
+    }
+
+    /**
+     * @return the stanza of the message to the recipient
+     */
+    String encode(String to, String messageId) {
+        return StanzaEncoder.encode(to, messageId, mEncoded);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the client's counters, gauges and latency histograms. Metrics are
+ * identified by name and an optional label, e.g. the nack counter is labelled
+ * with the error code. Updating a metric is lock-free, and metrics are created on
+ * first use.
+ * <br>
+ * The registry can be read as Prometheus text, see {@link MetricsHttpServer}, and as a
+ * flat map of values, which {@link MetricsMBean} exposes through JMX.
+ */
+public class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private enum Type {
+        COUNTER("counter"), GAUGE("gauge"), SUMMARY("summary");
+
+        final String mName;
+
+        Type(String name) {
+            mName = name;
+        }
+    }
+
+    private static final class Family {
+        final String mName;
+        final String mHelp;
+        final Type mType;
+        final Map<String, Object> mSeries = new ConcurrentHashMap<>();
+
+        Family(String name, String help, Type type) {
+            mName = name;
+            mHelp = help;
+            mType = type;
+        }
+    }
+
+    private final Map<String, Family> mFamilies = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name, String help) {
+        return counter(name, help, null, null);
+    }
+
+    public LongAdder counter(String name, String help, String labelName, String labelValue) {
+        return (LongAdder) family(name, help, Type.COUNTER).mSeries
+                .computeIfAbsent(labels(labelName, labelValue), key -> new LongAdder());
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, help, null, null);
+    }
+
+    public LatencyHistogram histogram(String name, String help, String labelName, String labelValue) {
+        return (LatencyHistogram) family(name, help, Type.SUMMARY).mSeries
+                .computeIfAbsent(labels(labelName, labelValue), key -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a gauge whose value is read from the supplier whenever the metrics are collected.
+     */
+    public void gauge(String name, String help, LongSupplier supplier) {
+        family(name, help, Type.GAUGE).mSeries.put("", supplier);
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family family = mFamilies.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (family.mType != type) {
+            throw new IllegalArgumentException(name + " is a " + family.mType.mName);
+        }
+        return family;
+    }
+
+    private static String labels(String labelName, String labelValue) {
+        if (labelName == null) {
+            return "";
+        }
+        StringBuilder labels = new StringBuilder(labelName).append("=\"");
+        for (int i = 0; i < labelValue.length(); i++) {
+            char c = labelValue.charAt(i);
+            if (c == '\\' || c == '"') {
+                labels.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                labels.append("\\n");
+            }
+            else {
+                labels.append(c);
+            }
+        }
+        return labels.append('"').toString();
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format. Latencies are
+     * exported as summaries in seconds.
+     */
+    public void writePrometheus(StringBuilder out) {
+        for (Family family : new TreeMap<>(mFamilies).values()) {
+            out.append("# HELP ").append(family.mName).append(' ').append(family.mHelp).append('\n');
+            out.append("# TYPE ").append(family.mName).append(' ').append(family.mType.mName).append('\n');
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.mSeries).entrySet()) {
+                String labels = series.getKey();
+                Object metric = series.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    for (double quantile : QUANTILES) {
+                        String quantileLabel = "quantile=\"" + quantile + "\"";
+                        sample(out, family.mName, labels.isEmpty() ? quantileLabel : labels + "," + quantileLabel,
+                                seconds(histogram.getPercentileMicros(quantile * 100)));
+                    }
+                    sample(out, family.mName + "_sum", labels, seconds(histogram.getSumMicros()));
+                    sample(out, family.mName + "_count", labels, Long.toString(histogram.getCount()));
+                }
+                else {
+                    sample(out, family.mName, labels, Long.toString(value(metric)));
+                }
+            }
+        }
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, String value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1e6);
+    }
+
+    private static long value(Object metric) {
+        if (metric instanceof LongAdder) {
+            return ((LongAdder) metric).sum();
+        }
+        return ((LongSupplier) metric).getAsLong();
+    }
+
+    /**
+     * Current values by metric name with the label appended in brackets. Latencies are
+     * reported as their count and percentiles in microseconds.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Family family : new TreeMap<>(mFamilies).values()) {
+            for (Map.Entry<String, Object> series : new TreeMap<>(family.mSeries).entrySet()) {
+                String name = series.getKey().isEmpty() ? family.mName
+                        : family.mName + "[" + series.getKey().replace("\"", "") + "]";
+                Object metric = series.getValue();
+                if (metric instanceof LatencyHistogram) {
+                    LatencyHistogram histogram = (LatencyHistogram) metric;
+                    values.put(name + ".count", histogram.getCount());
+                    values.put(name + ".p50", histogram.getPercentileMicros(50));
+                    values.put(name + ".p99", histogram.getPercentileMicros(99));
+                    values.put(name + ".p999", histogram.getPercentileMicros(99.9));
+                    values.put(name + ".max", histogram.getMaxMicros());
+                }
+                else {
+                    values.put(name, value(metric));
+                }
+            }
+        }
+        return values;
+    }
+}
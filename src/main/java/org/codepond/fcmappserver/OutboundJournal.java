@@ -0,0 +1,355 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Write-ahead journal of downstream messages, so messages that weren't acked or finally
+ * nacked when the process stopped are sent again after a restart.
+ * <br>
+ * Every message is appended to a memory-mapped segment file named {@code outbound-<index>.log}
+ * before it is sent and marked complete once CCS acks it or nacks it for good, or once it
+ * failed for good. Only messages still pending when the process stops are sent again. A
+ * message is only handed to a connection once its record is forced to disk. A single thread forces the segment for all
+ * records appended since its last force, so the cost of an fsync is shared by every message
+ * sent in the meantime. Completions aren't forced on their own, losing one only
+ * means the message is sent again.
+ * <br>
+ * A record is a type byte followed by a sequence number and, for sent messages, the lane and the
+ * length-prefixed message id and stanza. As in {@link RegistrationLog} the type byte is written last. Segments are
+ * deleted, oldest first, once all of their messages are complete.
+ */
+public class OutboundJournal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final byte SEND = 1;
+    private static final byte COMPLETE = 2;
+    private static final String PREFIX = "outbound-";
+    private static final String SUFFIX = ".log";
+    private static final Lane[] LANES = Lane.values();
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private MappedByteBuffer mBuffer;
+    private long mSegment;
+    private long mNextSequence;
+    /**
+     * Segment of every message that isn't complete, by sequence number.
+     */
+    private final Map<Long, Long> mPending = new HashMap<>();
+    /**
+     * Number of messages that aren't complete, by segment.
+     */
+    private final TreeMap<Long, Integer> mPendingPerSegment = new TreeMap<>();
+    /**
+     * Messages left pending by the previous run, by sequence number, and the segments holding them.
+     */
+    private Map<Long, PendingMessage> mRecovered;
+    private List<Long> mRecoveredSegments;
+    private final BlockingQueue<Runnable> mCommits = new LinkedBlockingQueue<>();
+    private final Thread mCommitter;
+
+    public OutboundJournal(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the journal and reads the messages the previous run left pending, they are sent
+     * again once the client connects.
+     *
+     * @param segmentSize size of each segment file in bytes, limits the size of a message
+     */
+    public OutboundJournal(File directory, int segmentSize) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mRecovered = new LinkedHashMap<>();
+        mRecoveredSegments = segments(directory);
+        for (long segment : mRecoveredSegments) {
+            read(segmentFile(segment));
+        }
+        long nextSegment = mRecoveredSegments.isEmpty() ? 0 : mRecoveredSegments.get(mRecoveredSegments.size() - 1) + 1;
+        logger.log(Level.INFO, "Found " + mRecovered.size() + " pending downstream messages in " + directory);
+        open(nextSegment);
+        mCommitter = new Thread(this::commit, "outbound-journal");
+        mCommitter.setDaemon(true);
+        mCommitter.start();
+    }
+
+    private void open(long segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "rw")) {
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        }
+        mSegment = segment;
+        mPendingPerSegment.put(segment, 0);
+    }
+
+    /**
+     * Records a message about to be sent.
+     *
+     * @param lane the lane the message is sent in, it's sent in the same lane after a restart
+     * @param onDurable run on the journal's thread once the record is on disk
+     * @return the sequence number with which to {@link #complete} the message
+     */
+    long append(String messageId, String stanza, Lane lane, Runnable onDurable) {
+        byte[] idBytes = messageId.getBytes(StandardCharsets.UTF_8);
+        byte[] stanzaBytes = stanza.getBytes(StandardCharsets.UTF_8);
+        if (idBytes.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Message id of " + idBytes.length + " bytes is too long");
+        }
+        int length = 1 + 8 + 1 + 2 + idBytes.length + 4 + stanzaBytes.length;
+        if (length > mSegmentSize) {
+            throw new IllegalArgumentException("Message of " + length + " bytes exceeds the segment size");
+        }
+        long sequence;
+        synchronized (this) {
+            if (mBuffer.remaining() < length) {
+                roll();
+            }
+            sequence = mNextSequence++;
+            int start = mBuffer.position();
+            mBuffer.position(start + 1);
+            mBuffer.putLong(sequence);
+            mBuffer.put((byte) lane.ordinal());
+            mBuffer.putShort((short) idBytes.length);
+            mBuffer.put(idBytes);
+            mBuffer.putInt(stanzaBytes.length);
+            mBuffer.put(stanzaBytes);
+            mBuffer.put(start, SEND);
+            mPending.put(sequence, mSegment);
+            mPendingPerSegment.merge(mSegment, 1, Integer::sum);
+        }
+        mCommits.add(onDurable);
+        return sequence;
+    }
+
+    /**
+     * Marks a message as acked, finally nacked or failed, it won't be sent again after a restart.
+     */
+    synchronized void complete(long sequence) {
+        Long segment = mPending.remove(sequence);
+        if (segment == null) {
+            return;
+        }
+        if (mBuffer.remaining() < 1 + 8) {
+            roll();
+        }
+        int start = mBuffer.position();
+        mBuffer.position(start + 1);
+        mBuffer.putLong(sequence);
+        mBuffer.put(start, COMPLETE);
+        if (mPendingPerSegment.merge(segment, -1, Integer::sum) == 0) {
+            deleteCompletedSegments();
+        }
+    }
+
+    /**
+     * Sends the messages the previous run left pending once more. They are appended to the
+     * journal again through the sender, the segments of the previous run are deleted as
+     * soon as the new records are on disk.
+     *
+     * @param sender sends a message, with the id, stanza and lane it was journaled with, through the journal
+     */
+    void recover(Consumer<PendingMessage> sender) {
+        Map<Long, PendingMessage> recovered;
+        List<Long> segments;
+        synchronized (this) {
+            recovered = mRecovered;
+            segments = mRecoveredSegments;
+            mRecovered = Collections.emptyMap();
+            mRecoveredSegments = Collections.emptyList();
+        }
+        if (segments.isEmpty()) {
+            return;
+        }
+        logger.log(Level.INFO, "Sending " + recovered.size() + " pending downstream messages again");
+        for (PendingMessage message : recovered.values()) {
+            sender.accept(message);
+        }
+        mCommits.add(() -> {
+            for (long segment : segments) {
+                deleteSegment(segment);
+            }
+        });
+    }
+
+    /**
+     * Number of messages recorded but not complete yet.
+     */
+    public synchronized int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Forces the current segment to disk and stops the journal. Messages whose record
+     * wasn't forced yet are not sent, they are sent after the next start.
+     */
+    @Override
+    public void close() {
+        mCommitter.interrupt();
+        try {
+            mCommitter.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            mBuffer.force();
+        }
+    }
+
+    private void commit() {
+        List<Runnable> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(mCommits.take());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            mCommits.drainTo(batch);
+            // Records appended to earlier segments were forced when the segment was rolled
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                buffer = mBuffer;
+            }
+            buffer.force();
+            for (Runnable task : batch) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Failed to send a journaled message", e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    private void roll() {
+        mBuffer.force();
+        try {
+            open(mSegment + 1);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        deleteCompletedSegments();
+    }
+
+    /**
+     * Deletes the oldest segments as long as all of their messages are complete. Newer segments
+     * are kept even if they are complete, they may hold completions of messages in older ones.
+     */
+    private void deleteCompletedSegments() {
+        for (Iterator<Map.Entry<Long, Integer>> segments = mPendingPerSegment.entrySet().iterator(); segments.hasNext(); ) {
+            Map.Entry<Long, Integer> segment = segments.next();
+            if (segment.getKey() == mSegment || segment.getValue() > 0) {
+                return;
+            }
+            segments.remove();
+            deleteSegment(segment.getKey());
+        }
+    }
+
+    private void deleteSegment(long segment) {
+        File file = segmentFile(segment);
+        if (!file.delete()) {
+            logger.log(Level.WARNING, "Cannot delete " + file);
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(mDirectory, String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+
+    private static List<Long> segments(File directory) {
+        List<Long> segments = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Applies the complete records of a segment to the recovered messages.
+     */
+    private void read(File file) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                byte type = buffer.get();
+                if (type == SEND) {
+                    long sequence = buffer.getLong();
+                    Lane lane = LANES[buffer.get()];
+                    byte[] id = new byte[buffer.getShort()];
+                    buffer.get(id);
+                    byte[] stanza = new byte[buffer.getInt()];
+                    buffer.get(stanza);
+                    mRecovered.put(sequence, new PendingMessage(new String(id, StandardCharsets.UTF_8),
+                            new String(stanza, StandardCharsets.UTF_8), lane));
+                    mNextSequence = Math.max(mNextSequence, sequence + 1);
+                }
+                else if (type == COMPLETE) {
+                    mRecovered.remove(buffer.getLong());
+                }
+                else {
+                    // Either the zero-filled end of the segment or a torn write
+                    break;
+                }
+            }
+        }
+        catch (BufferUnderflowException | NegativeArraySizeException e) {
+            // A torn write at the end of the segment
+        }
+    }
+}
@@ -33,5 +33,12 @@ import org.codepond.fcmappserver.messages.UpstreamMessage;
 public interface PayloadProcessor {
     
     void handleMessage(UpstreamMessage.Request msg);
+
+    /**
+     * The action this processor handles when it's discovered by {@link ProcessorRegistry#withServices()}.
+     */
+    default String getAction() {
+        return null;
+    }
     
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A downstream message that has been handed to the client and is waiting
+ * for CCS to ack or nack it.
+ */
+class PendingMessage {
+
+    private final String mMessageId;
+    private final String mStanza;
+    private final Lane mLane;
+    private final CompletableFuture<DownstreamMessage.Response> mFuture = new CompletableFuture<>();
+    // Written when the message is transmitted, after it became visible in the window,
+    // and read on the listener thread handling its ack or nack
+    private volatile int mAttempts;
+    private volatile long mTransmitNanos;
+    private volatile boolean mJournaled;
+
+    PendingMessage(String messageId, String stanza, Lane lane) {
+        mMessageId = messageId;
+        mStanza = stanza;
+        mLane = lane;
+    }
+
+    String getMessageId() {
+        return mMessageId;
+    }
+
+    /**
+     * The encoded XMPP stanza, see {@link StanzaEncoder}.
+     */
+    String getStanza() {
+        return mStanza;
+    }
+
+    /**
+     * The lane the message waits in while the window is full.
+     */
+    Lane getLane() {
+        return mLane;
+    }
+
+    CompletableFuture<DownstreamMessage.Response> getFuture() {
+        return mFuture;
+    }
+
+    /**
+     * Number of times the message was written to a connection.
+     */
+    int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * {@link System#nanoTime()} of the last time the message was written to a connection.
+     */
+    long getTransmitNanos() {
+        return mTransmitNanos;
+    }
+
+    /**
+     * Whether the message is recorded in the outbound journal. A journaled message whose
+     * connection is lost is sent again instead of failing.
+     */
+    boolean isJournaled() {
+        return mJournaled;
+    }
+
+    void setJournaled() {
+        mJournaled = true;
+    }
+
+    void onTransmit() {
+        // Only one connection transmits a message at a time, so the increment doesn't race
+        mAttempts++;
+        mTransmitNanos = System.nanoTime();
+    }
+}
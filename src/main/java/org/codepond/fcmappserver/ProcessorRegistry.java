@@ -0,0 +1,179 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.UpstreamMessage;
+
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Maps the action of upstream messages to the {@link PayloadProcessor} handling them.
+ * Processors are created once and shared by all messages, so they must be thread-safe.
+ * <br>
+ * Processors are registered programmatically or discovered with {@link ServiceLoader}:
+ * list the class in {@code META-INF/services/org.codepond.fcmappserver.PayloadProcessor}
+ * and return its action from {@link PayloadProcessor#getAction()}. Messages with an
+ * action nobody registered go to the fallback processor, which logs and drops them
+ * unless replaced.
+ * <br>
+ * The number of messages of an action processed at the same time can be limited,
+ * e.g. for processors calling a slow backend. Such an action gets as many threads of
+ * its own, and {@link UpstreamDispatcher} hands its messages to them instead of
+ * processing them on an upstream worker, so a backlog of the action doesn't hold up
+ * the workers and the other actions.
+ */
+public class ProcessorRegistry {
+
+    private static final class Registration {
+        final PayloadProcessor mProcessor;
+        final ExecutorService mExecutor;
+
+        Registration(String action, PayloadProcessor processor, int maxConcurrency) {
+            mProcessor = processor;
+            mExecutor = maxConcurrency > 0 ? createExecutor(action, maxConcurrency) : null;
+        }
+
+        void close() {
+            if (mExecutor != null) {
+                // Messages already handed to the executor are still processed
+                mExecutor.shutdown();
+            }
+        }
+    }
+
+    private static final class DroppingProcessor implements PayloadProcessor {
+        @Override
+        public void handleMessage(UpstreamMessage.Request msg) {
+            logger.log(Level.WARNING, "No processor for action " + msg.getData().get("action")
+                    + ", dropping upstream message " + msg.getMessageId());
+        }
+    }
+
+    private final Map<String, Registration> mRegistrations = new ConcurrentHashMap<>();
+    private volatile Registration mFallback = new Registration(null, new DroppingProcessor(), 0);
+
+    /**
+     * Creates a registry with all processors found by {@link ServiceLoader}.
+     */
+    public static ProcessorRegistry withServices() {
+        ProcessorRegistry registry = new ProcessorRegistry();
+        for (PayloadProcessor processor : ServiceLoader.load(PayloadProcessor.class)) {
+            String action = processor.getAction();
+            if (action == null) {
+                logger.log(Level.WARNING, processor.getClass().getName() + " has no action, not registering it");
+                continue;
+            }
+            registry.register(action, processor);
+        }
+        return registry;
+    }
+
+    /**
+     * Registers the processor for the action, replacing the current one.
+     */
+    public void register(String action, PayloadProcessor processor) {
+        register(action, processor, 0);
+    }
+
+    /**
+     * Registers the processor for the action, replacing the current one.
+     *
+     * @param maxConcurrency maximum number of messages processed at the same time, or 0 for no limit
+     */
+    public void register(String action, PayloadProcessor processor, int maxConcurrency) {
+        Registration previous = mRegistrations.put(action, new Registration(action, processor, maxConcurrency));
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Limits the number of messages of an already registered action processed at the same time.
+     *
+     * @param maxConcurrency the limit, or 0 for no limit
+     */
+    public void setMaxConcurrency(String action, int maxConcurrency) {
+        Registration registration = mRegistrations.get(action);
+        if (registration == null) {
+            throw new IllegalArgumentException("No processor for action " + action);
+        }
+        register(action, registration.mProcessor, maxConcurrency);
+    }
+
+    public void unregister(String action) {
+        Registration previous = mRegistrations.remove(action);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Sets the processor for messages with an unknown or missing action.
+     */
+    public void setFallback(PayloadProcessor processor) {
+        mFallback = new Registration(null, processor, 0);
+    }
+
+    /**
+     * @return the processor registered for the action, or the fallback
+     */
+    public PayloadProcessor getProcessor(String action) {
+        return lookup(action).mProcessor;
+    }
+
+    private Registration lookup(String action) {
+        Registration registration = action != null ? mRegistrations.get(action) : null;
+        return registration != null ? registration : mFallback;
+    }
+
+    /**
+     * Hands the message to the processor of its action on the calling thread. The action's
+     * concurrency limit applies when the message is run on its {@link #getExecutor executor}.
+     *
+     * @return the processor that handled the message
+     */
+    public PayloadProcessor process(UpstreamMessage.Request msg) {
+        PayloadProcessor processor = lookup(msg.getData().get("action")).mProcessor;
+        processor.handleMessage(msg);
+        return processor;
+    }
+
+    /**
+     * @return the threads of the message's action if its concurrency is limited, otherwise null
+     */
+    public Executor getExecutor(UpstreamMessage.Request msg) {
+        return lookup(msg.getData().get("action")).mExecutor;
+    }
+
+    private static ExecutorService createExecutor(String action, int threads) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "processor-" + action + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+}
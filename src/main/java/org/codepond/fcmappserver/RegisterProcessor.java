@@ -27,10 +27,17 @@ import org.codepond.fcmappserver.messages.UpstreamMessage;
  */
 public class RegisterProcessor implements PayloadProcessor {
 
+    public static final String ACTION = "org.codepond.fcmappserver.REGISTER";
+
     @Override
     public void handleMessage(UpstreamMessage.Request msg) {
         String accountName = msg.getData().get("account");
-        PseudoDao.getInstance().addRegistration(msg.getFrom(), accountName);
+        CcsClient.getInstance().getRegistrationStore().addRegistration(msg.getFrom(), accountName);
+    }
+
+    @Override
+    public String getAction() {
+        return ACTION;
     }
 
 }
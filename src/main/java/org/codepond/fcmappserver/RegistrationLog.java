@@ -0,0 +1,199 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Append-only log of registration events, split into fixed size memory-mapped
+ * segment files named {@code registrations-<index>.log}.
+ * <br>
+ * A record is a type byte followed by two length-prefixed UTF-8 strings. The type
+ * byte is written last, so a record that was cut short by a crash reads as the
+ * zero-filled end of the segment and is ignored on replay.
+ */
+class RegistrationLog {
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+    static final byte NOTIFICATION_KEY_NAME = 3;
+
+    /**
+     * Receives the records of a segment during replay.
+     */
+    interface Visitor {
+        void visit(byte type, String first, String second);
+    }
+
+    private static final String PREFIX = "registrations-";
+    private static final String SUFFIX = ".log";
+    private static final int NULL_LENGTH = 0xFFFF;
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private MappedByteBuffer mBuffer;
+    private long mSegment;
+    private boolean mDirty;
+
+    /**
+     * @param firstSegment index of the segment to start appending to
+     */
+    RegistrationLog(File directory, int segmentSize, long firstSegment) throws IOException {
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        open(firstSegment);
+    }
+
+    private void open(long segment) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(mDirectory, segment), "rw")) {
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        }
+        mSegment = segment;
+    }
+
+    synchronized void append(byte type, String first, String second) {
+        byte[] firstBytes = first != null ? first.getBytes(StandardCharsets.UTF_8) : null;
+        byte[] secondBytes = second != null ? second.getBytes(StandardCharsets.UTF_8) : null;
+        checkLength(firstBytes);
+        checkLength(secondBytes);
+        int length = 1 + 2 + (firstBytes != null ? firstBytes.length : 0)
+                + 2 + (secondBytes != null ? secondBytes.length : 0);
+        if (length > mSegmentSize) {
+            throw new IllegalArgumentException("Record of " + length + " bytes exceeds the segment size");
+        }
+        if (mBuffer.remaining() < length) {
+            // The rest of the segment stays zero-filled, which replay treats as its end
+            roll();
+        }
+        int start = mBuffer.position();
+        mBuffer.position(start + 1);
+        putString(firstBytes);
+        putString(secondBytes);
+        mBuffer.put(start, type);
+        mDirty = true;
+    }
+
+    private void putString(byte[] bytes) {
+        if (bytes == null) {
+            mBuffer.putShort((short) NULL_LENGTH);
+        }
+        else {
+            mBuffer.putShort((short) bytes.length);
+            mBuffer.put(bytes);
+        }
+    }
+
+    private static void checkLength(byte[] bytes) {
+        if (bytes != null && bytes.length >= NULL_LENGTH) {
+            throw new IllegalArgumentException("Value of " + bytes.length + " bytes is too long");
+        }
+    }
+
+    /**
+     * Switches appending to a new segment.
+     *
+     * @return the index of the new segment
+     */
+    synchronized long roll() {
+        mBuffer.force();
+        try {
+            open(mSegment + 1);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return mSegment;
+    }
+
+    /**
+     * Forces appended records to disk.
+     */
+    synchronized void flush() {
+        if (mDirty) {
+            mBuffer.force();
+            mDirty = false;
+        }
+    }
+
+    static File segmentFile(File directory, long segment) {
+        return new File(directory, String.format("%s%016d%s", PREFIX, segment, SUFFIX));
+    }
+
+    /**
+     * @return the indexes of the segments found in the directory, in ascending order
+     */
+    static List<Long> segments(File directory) {
+        List<Long> segments = new ArrayList<>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(PREFIX) && name.endsWith(SUFFIX)) {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * Reads all complete records of a segment in the order they were appended.
+     */
+    static void replay(File file, Visitor visitor) throws IOException {
+        MappedByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        while (buffer.hasRemaining()) {
+            byte type = buffer.get();
+            if (type < ADD || type > NOTIFICATION_KEY_NAME) {
+                // Either the zero-filled end of the segment or a torn write
+                break;
+            }
+            String first;
+            String second;
+            try {
+                first = getString(buffer);
+                second = getString(buffer);
+            }
+            catch (BufferUnderflowException e) {
+                break;
+            }
+            visitor.visit(type, first, second);
+        }
+    }
+
+    private static String getString(MappedByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
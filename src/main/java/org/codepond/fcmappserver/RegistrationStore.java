@@ -0,0 +1,84 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Keeps track of the registration tokens of client apps, the accounts they belong to
+ * and the notification key names of those accounts.
+ * <br>
+ * A registration token belongs to at most one account. Registering a token again
+ * with a different account moves it to that account.
+ * <br>
+ * Implementations must be safe for concurrent use.
+ */
+public interface RegistrationStore {
+
+    /**
+     * Adds a registration token, optionally linked to an account.
+     *
+     * @param accountName the account or null to keep the token's current account, if any
+     */
+    void addRegistration(String regId, String accountName);
+
+    /**
+     * Removes a registration token and unlinks it from its account.
+     *
+     * @return false if the token wasn't registered
+     */
+    boolean removeRegistration(String regId);
+
+    boolean isRegistered(String regId);
+
+    /**
+     * @return the account the token belongs to or null if it doesn't belong to any
+     */
+    String getAccount(String regId);
+
+    /**
+     * Number of registered tokens.
+     */
+    int size();
+
+    /**
+     * Iterates over all registered tokens without copying them. The iterator is weakly
+     * consistent: it never throws {@link java.util.ConcurrentModificationException}
+     * and may or may not reflect changes made while iterating.
+     */
+    Iterator<String> registrationIds();
+
+    /**
+     * @return a snapshot of all registered tokens
+     */
+    Set<String> getAllRegistrationIds();
+
+    /**
+     * @return a snapshot of the account's tokens or null if the account has none
+     */
+    Set<String> getAllRegistrationIdsForAccount(String account);
+
+    /**
+     * @return a snapshot of all accounts with at least one token
+     */
+    Set<String> getAccounts();
+
+    String getNotificationKeyName(String accountName);
+
+    void storeNotificationKeyName(String accountName, String notificationKeyName);
+}
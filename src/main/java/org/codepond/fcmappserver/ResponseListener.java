@@ -0,0 +1,32 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+/**
+ * Gets the final ack or nack of every downstream message sent with
+ * {@link CcsClient#sendAsync(DownstreamMessage.Request)}. Nacks that are
+ * retried are not reported, only the outcome of the last attempt.
+ * <br>
+ * Called on the Smack listener thread, so implementations must return quickly.
+ */
+public interface ResponseListener {
+
+    void onResponse(DownstreamMessage.Response response);
+
+}
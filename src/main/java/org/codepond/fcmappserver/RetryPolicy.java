@@ -0,0 +1,61 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How often and how late a nacked downstream message is retried.
+ * The backoff doubles with each attempt up to a maximum, and a random
+ * jitter of up to half the backoff spreads out retries that failed together.
+ */
+public class RetryPolicy {
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+
+    /**
+     * @param maxAttempts maximum number of sends including the first one
+     * @param initialBackoff delay before the first retry
+     * @param maxBackoff upper bound of the delay between retries
+     */
+    public RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, TimeUnit unit) {
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMillis = unit.toMillis(initialBackoff);
+        mMaxBackoffMillis = unit.toMillis(maxBackoff);
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * @param attempt number of sends so far, starting at 1
+     * @return the delay before the next send in milliseconds
+     */
+    public long backoffMillis(int attempt) {
+        long backoff = mInitialBackoffMillis;
+        for (int i = 1; i < attempt && backoff < mMaxBackoffMillis; i++) {
+            backoff *= 2;
+        }
+        backoff = Math.min(backoff, mMaxBackoffMillis);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules retries of nacked downstream messages according to a {@link RetryPolicy}
+ * per nack error code. Errors without a policy are permanent and never retried.
+ * <br>
+ * Pending retries live on a {@link TimerWheel}, so hundreds of thousands of them
+ * cost one small node each.
+ */
+public class RetryScheduler {
+
+    public static final String SERVICE_UNAVAILABLE = "SERVICE_UNAVAILABLE";
+    public static final String INTERNAL_SERVER_ERROR = "INTERNAL_SERVER_ERROR";
+    public static final String DEVICE_MESSAGE_RATE_EXCEEDED = "DEVICE_MESSAGE_RATE_EXCEEDED";
+    public static final String CONNECTION_DRAINING = "CONNECTION_DRAINING";
+
+    private final Map<String, RetryPolicy> mPolicies = new ConcurrentHashMap<>();
+    private final TimerWheel mTimer = new TimerWheel("retry-timer", 100, TimeUnit.MILLISECONDS, 512);
+
+    public RetryScheduler() {
+        mPolicies.put(SERVICE_UNAVAILABLE, new RetryPolicy(5, 1, 60, TimeUnit.SECONDS));
+        mPolicies.put(INTERNAL_SERVER_ERROR, new RetryPolicy(5, 1, 60, TimeUnit.SECONDS));
+        // The device gets too many messages, give it considerably more time
+        mPolicies.put(DEVICE_MESSAGE_RATE_EXCEEDED, new RetryPolicy(3, 30, 300, TimeUnit.SECONDS));
+        // Sent on a connection that is going away, retry right away on another one
+        mPolicies.put(CONNECTION_DRAINING, new RetryPolicy(5, 0, 1, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Sets the policy for an error code, or removes it if null so the error is never retried.
+     */
+    public void setPolicy(String error, RetryPolicy policy) {
+        if (policy == null) {
+            mPolicies.remove(error);
+        }
+        else {
+            mPolicies.put(error, policy);
+        }
+    }
+
+    public RetryPolicy getPolicy(String error) {
+        return error != null ? mPolicies.get(error) : null;
+    }
+
+    /**
+     * Schedules a retry if the error has a policy and attempts are left.
+     *
+     * @param attempt number of sends so far, starting at 1
+     * @return false if the message must not be retried
+     */
+    public boolean schedule(String error, int attempt, Runnable retry) {
+        RetryPolicy policy = getPolicy(error);
+        if (policy == null || attempt >= policy.getMaxAttempts()) {
+            return false;
+        }
+        mTimer.schedule(retry, policy.backoffMillis(attempt), TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Number of retries waiting for their backoff to pass.
+     */
+    public int getPendingCount() {
+        return mTimer.getPendingCount();
+    }
+
+    /**
+     * Drops all pending retries.
+     */
+    public void shutdown() {
+        mTimer.stop();
+    }
+}
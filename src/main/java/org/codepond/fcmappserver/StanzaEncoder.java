@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+import org.jivesoftware.smack.packet.Packet;
+
+import java.util.Map;
+
+import static org.codepond.fcmappserver.CcsClient.GCM_ELEMENT_NAME;
+import static org.codepond.fcmappserver.CcsClient.GCM_NAMESPACE;
+
+/**
+ * Encodes messages to CCS straight into the XMPP stanza that is written to the socket.
+ * The JSON and its XML envelope are built in one pass into a buffer reused by each
+ * thread, with JSON and XML escaping applied together, so the only copy made per
+ * message is the final stanza string Smack requires.
+ */
+final class StanzaEncoder {
+
+    private static final String STANZA_START = "<message><" + GCM_ELEMENT_NAME + " xmlns=\"" + GCM_NAMESPACE + "\">";
+    private static final String STANZA_END = "</" + GCM_ELEMENT_NAME + "></message>";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Buffers that grew beyond this while encoding a large message are not kept.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> sBuffer = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    /**
+     * A packet whose XML has already been encoded.
+     */
+    static final class StanzaPacket extends Packet {
+        private final String mStanza;
+
+        StanzaPacket(String stanza) {
+            mStanza = stanza;
+        }
+
+        @Override
+        public String toXML() {
+            return mStanza;
+        }
+    }
+
+    private StanzaEncoder() {
+    }
+
+    static String encode(DownstreamMessage.Request request) {
+        StringBuilder out = start();
+        out.append('{');
+        boolean first = appendField(out, true, "to", request.getTo());
+        first = appendField(out, first, "message_id", request.getMessageId());
+        appendShared(out, first, request.getCollapseKey(), request.getPriority(), request.getTimeToLive(),
+                request.getData());
+        return finish(out);
+    }
+
+    /**
+     * Encodes the part of a stanza following the message id, which is the same for every
+     * recipient of a {@link MessageTemplate}.
+     */
+    static String encodeTemplate(String collapseKey, String priority, Integer timeToLive, Map<String, String> data) {
+        StringBuilder out = new StringBuilder(256);
+        appendShared(out, false, collapseKey, priority, timeToLive, data);
+        return out.append(STANZA_END).toString();
+    }
+
+    /**
+     * Encodes a message to a single recipient by splicing its recipient and message id
+     * in front of the template's encoded part. Produces the same stanza as encoding the
+     * equivalent request.
+     */
+    static String encode(String to, String messageId, String encodedTemplate) {
+        StringBuilder out = start();
+        out.append('{');
+        boolean first = appendField(out, true, "to", to);
+        appendField(out, first, "message_id", messageId);
+        String stanza = out.append(encodedTemplate).toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            sBuffer.set(new StringBuilder(1024));
+        }
+        return stanza;
+    }
+
+    private static void appendShared(StringBuilder out, boolean first, String collapseKey, String priority,
+                                     Integer timeToLive, Map<String, String> data) {
+        first = appendField(out, first, "collapse_key", collapseKey);
+        first = appendField(out, first, "priority", priority);
+        if (timeToLive != null) {
+            if (!first) {
+                out.append(',');
+            }
+            out.append("\"time_to_live\":").append(timeToLive.intValue());
+            first = false;
+        }
+        if (data != null) {
+            if (!first) {
+                out.append(',');
+            }
+            out.append("\"data\":{");
+            boolean firstEntry = true;
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                firstEntry = appendField(out, firstEntry, entry.getKey(), entry.getValue());
+            }
+            out.append('}');
+        }
+        out.append('}');
+    }
+
+    /**
+     * Encodes the ack CCS expects for every upstream message.
+     */
+    static String encodeAck(String to, String messageId) {
+        StringBuilder out = start();
+        out.append('{');
+        boolean first = appendField(out, true, "to", to);
+        first = appendField(out, first, "message_id", messageId);
+        appendField(out, first, "message_type", "ack");
+        out.append('}');
+        return finish(out);
+    }
+
+    /**
+     * Wraps an already serialized JSON payload, escaping it for XML.
+     */
+    static String encode(String json) {
+        StringBuilder out = start();
+        for (int i = 0; i < json.length(); i++) {
+            appendXmlChar(out, json.charAt(i));
+        }
+        return finish(out);
+    }
+
+    /**
+     * Extracts the JSON payload of a stanza built by this encoder.
+     */
+    static String decodePayload(String stanza) {
+        int end = stanza.length() - STANZA_END.length();
+        StringBuilder json = new StringBuilder(end - STANZA_START.length());
+        for (int i = STANZA_START.length(); i < end; i++) {
+            char c = stanza.charAt(i);
+            if (c == '&') {
+                int semicolon = stanza.indexOf(';', i);
+                switch (stanza.substring(i + 1, semicolon)) {
+                    case "lt":
+                        json.append('<');
+                        break;
+                    case "gt":
+                        json.append('>');
+                        break;
+                    default:
+                        json.append('&');
+                }
+                i = semicolon;
+            }
+            else {
+                json.append(c);
+            }
+        }
+        return json.toString();
+    }
+
+    private static StringBuilder start() {
+        StringBuilder out = sBuffer.get();
+        out.setLength(0);
+        return out.append(STANZA_START);
+    }
+
+    private static String finish(StringBuilder out) {
+        String stanza = out.append(STANZA_END).toString();
+        if (out.capacity() > MAX_RETAINED_CAPACITY) {
+            sBuffer.set(new StringBuilder(1024));
+        }
+        return stanza;
+    }
+
+    /**
+     * Appends a string member unless its value is null.
+     *
+     * @return whether no member has been written yet
+     */
+    private static boolean appendField(StringBuilder out, boolean first, String name, String value) {
+        if (value == null) {
+            return first;
+        }
+        if (!first) {
+            out.append(',');
+        }
+        appendString(out, name);
+        out.append(':');
+        appendString(out, value);
+        return false;
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        int run = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '<' && c != '>' && c != '&') {
+                continue;
+            }
+            // Characters that need no escaping are appended in runs
+            out.append(value, run, i);
+            run = i + 1;
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xf]);
+                    }
+                    else {
+                        appendXmlChar(out, c);
+                    }
+            }
+        }
+        out.append(value, run, value.length()).append('"');
+    }
+
+    private static void appendXmlChar(StringBuilder out, char c) {
+        switch (c) {
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '&':
+                out.append("&amp;");
+                break;
+            default:
+                out.append(c);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Hashed timer wheel for large numbers of coarse-grained timeouts.
+ * <br>
+ * Scheduling only appends to a lock-free queue, and cancelling flips a flag. A single
+ * worker thread advances the wheel once per tick. It moves new timeouts into the bucket
+ * for their deadline and runs the expired timeouts of the current bucket. Timeouts
+ * further away than one rotation count down the rotations they still have to wait.
+ * Every timeout costs one small node instead of a heap entry, and timeouts fire up to
+ * one tick late.
+ * <br>
+ * Tasks run on the worker thread and must not block.
+ */
+class TimerWheel {
+
+    /**
+     * Handle to a scheduled task.
+     */
+    interface Timeout {
+        /**
+         * @return false if the task already ran or was cancelled before
+         */
+        boolean cancel();
+    }
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final class Node implements Timeout {
+        final Runnable mTask;
+        final long mDeadline;
+        final AtomicInteger mState = new AtomicInteger(PENDING);
+        long mRemainingRounds;
+        Bucket mBucket;
+        Node mPrev;
+        Node mNext;
+
+        Node(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!mState.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            mCancelled.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * Doubly linked list of nodes, only touched by the worker thread.
+     */
+    private static final class Bucket {
+        Node mHead;
+        Node mTail;
+
+        void add(Node node) {
+            node.mBucket = this;
+            if (mHead == null) {
+                mHead = mTail = node;
+            }
+            else {
+                mTail.mNext = node;
+                node.mPrev = mTail;
+                mTail = node;
+            }
+        }
+
+        void remove(Node node) {
+            if (node.mPrev != null) {
+                node.mPrev.mNext = node.mNext;
+            }
+            else {
+                mHead = node.mNext;
+            }
+            if (node.mNext != null) {
+                node.mNext.mPrev = node.mPrev;
+            }
+            else {
+                mTail = node.mPrev;
+            }
+            node.mPrev = null;
+            node.mNext = null;
+            node.mBucket = null;
+        }
+    }
+
+    /**
+     * Upper bound of new timeouts moved into the wheel per tick, so a burst of
+     * scheduling can't delay expiring the current bucket for too long.
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+    private final Queue<Node> mScheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Node> mCancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+    private final long mStartTime;
+    private final Thread mWorker;
+    private volatile boolean mStopped;
+    private long mTick;
+
+    /**
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    TimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        mTickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) * 2 - 1);
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = size - 1;
+        mStartTime = System.nanoTime();
+        mWorker = new Thread(this::run, name);
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Runs the task on the worker thread once the delay has passed.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (mStopped) {
+            throw new IllegalStateException("Timer is stopped");
+        }
+        Node node = new Node(task, System.nanoTime() - mStartTime + unit.toNanos(Math.max(delay, 0)));
+        mPendingCount.incrementAndGet();
+        mScheduled.add(node);
+        return node;
+    }
+
+    /**
+     * Number of scheduled tasks that have neither run nor been cancelled.
+     */
+    int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * Stops the worker thread. Tasks that haven't run yet never will.
+     */
+    void stop() {
+        mStopped = true;
+        mWorker.interrupt();
+    }
+
+    private void run() {
+        while (!mStopped) {
+            long deadline = mTickNanos * (mTick + 1);
+            long sleepNanos = deadline - (System.nanoTime() - mStartTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException e) {
+                    if (mStopped) {
+                        return;
+                    }
+                }
+                continue;
+            }
+            removeCancelled();
+            transferScheduled();
+            expire(mWheel[(int) (mTick & mMask)], deadline);
+            mTick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Node node;
+        while ((node = mCancelled.poll()) != null) {
+            if (node.mBucket != null) {
+                node.mBucket.remove(node);
+            }
+            mPendingCount.decrementAndGet();
+        }
+    }
+
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Node node = mScheduled.poll();
+            if (node == null) {
+                return;
+            }
+            if (node.mState.get() == CANCELLED) {
+                // Counted down when its cancellation is processed
+                continue;
+            }
+            long ticks = node.mDeadline / mTickNanos;
+            node.mRemainingRounds = (ticks - mTick) / mWheel.length;
+            // Deadlines in the past go into the current bucket
+            mWheel[(int) (Math.max(ticks, mTick) & mMask)].add(node);
+        }
+    }
+
+    private void expire(Bucket bucket, long deadline) {
+        Node node = bucket.mHead;
+        while (node != null) {
+            Node next = node.mNext;
+            if (node.mRemainingRounds <= 0 && node.mDeadline <= deadline) {
+                bucket.remove(node);
+                if (node.mState.compareAndSet(PENDING, EXPIRED)) {
+                    mPendingCount.decrementAndGet();
+                    try {
+                        node.mTask.run();
+                    }
+                    catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Timer task failed", e);
+                    }
+                }
+            }
+            else if (node.mState.get() == CANCELLED) {
+                bucket.remove(node);
+            }
+            else {
+                node.mRemainingRounds--;
+            }
+            node = next;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Keeps the {@link RegistrationStore} clean based on downstream responses:
+ * <ul>
+ * <li>tokens nacked with BAD_REGISTRATION or DEVICE_UNREGISTERED are removed</li>
+ * <li>tokens acked with a canonical registration_id are replaced by it, keeping their account</li>
+ * </ul>
+ * Since an account holds a set of tokens, a replaced token whose canonical token is
+ * already registered simply disappears from the account instead of being listed twice.
+ * <br>
+ * Responses are queued on the listener thread and applied in batches by a worker thread.
+ * If the queue is full the response is dropped. The token will be reported again the
+ * next time a message is sent to it.
+ */
+public class TokenPruner implements ResponseListener {
+
+    public static final String BAD_REGISTRATION = "BAD_REGISTRATION";
+    public static final String DEVICE_UNREGISTERED = "DEVICE_UNREGISTERED";
+
+    private static final int QUEUE_CAPACITY = 100000;
+    private static final int BATCH_SIZE = 1000;
+
+    private final RegistrationStore mStore;
+    private final BlockingQueue<DownstreamMessage.Response> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong mRemoved = new AtomicLong();
+    private final AtomicLong mReplaced = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mWorker;
+
+    public TokenPruner(RegistrationStore store) {
+        mStore = store;
+        mWorker = new Thread(this::run, "token-pruner");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    @Override
+    public void onResponse(DownstreamMessage.Response response) {
+        if (response.getFrom() == null || !isPrunable(response)) {
+            return;
+        }
+        if (!mQueue.offer(response)) {
+            mDropped.incrementAndGet();
+        }
+    }
+
+    private static boolean isPrunable(DownstreamMessage.Response response) {
+        if ("ack".equals(response.getMessageType())) {
+            return response.getRegistrationId() != null && !response.getRegistrationId().equals(response.getFrom());
+        }
+        return BAD_REGISTRATION.equals(response.getError()) || DEVICE_UNREGISTERED.equals(response.getError());
+    }
+
+    private void run() {
+        List<DownstreamMessage.Response> batch = new ArrayList<>(BATCH_SIZE);
+        Set<String> seen = new HashSet<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                batch.add(mQueue.take());
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            mQueue.drainTo(batch, BATCH_SIZE - 1);
+            for (DownstreamMessage.Response response : batch) {
+                // The same token may be reported by several messages, handle it once per batch
+                if (seen.add(response.getFrom())) {
+                    try {
+                        prune(response);
+                    }
+                    catch (RuntimeException e) {
+                        logger.log(Level.SEVERE, "Failed to prune token " + response.getFrom(), e);
+                    }
+                }
+            }
+            batch.clear();
+            seen.clear();
+        }
+    }
+
+    private void prune(DownstreamMessage.Response response) {
+        String token = response.getFrom();
+        if (!"ack".equals(response.getMessageType())) {
+            if (mStore.removeRegistration(token)) {
+                mRemoved.incrementAndGet();
+            }
+            return;
+        }
+        String account = mStore.getAccount(token);
+        if (mStore.removeRegistration(token)) {
+            mStore.addRegistration(response.getRegistrationId(), account);
+            mReplaced.incrementAndGet();
+        }
+    }
+
+    /**
+     * Number of dead tokens removed from the store.
+     */
+    public long getRemovedCount() {
+        return mRemoved.get();
+    }
+
+    /**
+     * Number of tokens replaced by their canonical token.
+     */
+    public long getReplacedCount() {
+        return mReplaced.get();
+    }
+
+    /**
+     * Number of responses dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    public void shutdown() {
+        mWorker.interrupt();
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the upstream messages received recently, so that a message CCS delivers
+ * again because our ack was lost or late is acked but not processed a second time.
+ * <br>
+ * Messages are identified by a 64 bit fingerprint of their sender and message id,
+ * kept in open-addressing tables of longs, so an entry takes 16 bytes at most. Two
+ * different messages getting the same fingerprint is negligibly rare. The entries are
+ * split over segments with their own lock and over generations: the newest generation
+ * takes new entries, and when its time slice has passed or it is full the oldest
+ * generation is cleared and becomes the newest. A message is therefore remembered for
+ * at least three quarters of the window, and less if more than {@code maxEntries}
+ * messages arrive within the window.
+ */
+class UpstreamDedupCache {
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int GENERATIONS = 4;
+
+    private final Segment[] mSegments = new Segment[1 << SEGMENT_BITS];
+    private final long mGenerationNanos;
+
+    /**
+     * @param window how long messages are remembered
+     * @param maxEntries maximum number of messages remembered
+     */
+    UpstreamDedupCache(long window, TimeUnit unit, int maxEntries) {
+        mGenerationNanos = unit.toNanos(window) / GENERATIONS;
+        int capacity = Math.max(1, maxEntries / (mSegments.length * GENERATIONS));
+        long now = System.nanoTime();
+        for (int i = 0; i < mSegments.length; i++) {
+            mSegments[i] = new Segment(capacity, now);
+        }
+    }
+
+    /**
+     * Remembers the message and tells whether it was received before within the window.
+     */
+    boolean isDuplicate(String from, String messageId) {
+        if (messageId == null) {
+            return false;
+        }
+        long fingerprint = fingerprint(from, messageId);
+        return mSegments[(int) (fingerprint >>> (64 - SEGMENT_BITS))].checkAndAdd(fingerprint, System.nanoTime());
+    }
+
+    /**
+     * Number of messages currently remembered.
+     */
+    int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    /**
+     * FNV-1a over both strings, finished with the MurmurHash3 mixer so that all bits
+     * are usable for picking segments and slots. Never 0, which marks empty slots.
+     */
+    static long fingerprint(String from, String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        if (from != null) {
+            for (int i = 0; i < from.length(); i++) {
+                hash = (hash ^ from.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        // Separates the strings so that "ab" + "c" and "a" + "bc" differ
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        for (int i = 0; i < messageId.length(); i++) {
+            hash = (hash ^ messageId.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    private final class Segment {
+        private final long[][] mTables = new long[GENERATIONS][];
+        private final int[] mCounts = new int[GENERATIONS];
+        private final int mCapacity;
+        private int mCurrent;
+        private long mCurrentStart;
+
+        Segment(int capacity, long now) {
+            mCapacity = capacity;
+            // At most half full, which keeps the probe sequences short
+            int length = Integer.highestOneBit(capacity * 2 - 1) << 1;
+            for (int i = 0; i < GENERATIONS; i++) {
+                mTables[i] = new long[length];
+            }
+            mCurrentStart = now;
+        }
+
+        synchronized boolean checkAndAdd(long fingerprint, long now) {
+            long elapsed = now - mCurrentStart;
+            if (elapsed >= mGenerationNanos) {
+                // After a quiet period several generations may have expired at once
+                long expired = Math.min(GENERATIONS, elapsed / Math.max(1, mGenerationNanos));
+                for (int i = 0; i < expired; i++) {
+                    rotate();
+                }
+                mCurrentStart = now;
+            }
+            for (long[] table : mTables) {
+                if (contains(table, fingerprint)) {
+                    return true;
+                }
+            }
+            if (mCounts[mCurrent] == mCapacity) {
+                rotate();
+                mCurrentStart = now;
+            }
+            insert(mTables[mCurrent], fingerprint);
+            mCounts[mCurrent]++;
+            return false;
+        }
+
+        synchronized int size() {
+            int size = 0;
+            for (int count : mCounts) {
+                size += count;
+            }
+            return size;
+        }
+
+        private void rotate() {
+            mCurrent = (mCurrent + 1) % GENERATIONS;
+            Arrays.fill(mTables[mCurrent], 0);
+            mCounts[mCurrent] = 0;
+        }
+
+        private boolean contains(long[] table, long fingerprint) {
+            int mask = table.length - 1;
+            for (int slot = (int) fingerprint & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+                if (table[slot] == fingerprint) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void insert(long[] table, long fingerprint) {
+            int mask = table.length - 1;
+            int slot = (int) fingerprint & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = fingerprint;
+        }
+    }
+}
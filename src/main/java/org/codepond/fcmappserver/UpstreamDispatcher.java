@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.UpstreamMessage;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Runs upstream messages off the Smack listener thread. Messages from the same
+ * sender (the {@code from} registration token) are processed one after another in
+ * arrival order, while messages of different senders run concurrently.
+ * <br>
+ * At most {@code queueDepth} messages are waiting or being processed at any time;
+ * what happens to further messages is defined by the {@link Backpressure} policy.
+ * <br>
+ * Messages can be processed on other threads than the workers, e.g. those of an action
+ * with limited concurrency, see {@link ProcessorRegistry#getExecutor}. The worker moves
+ * on to other senders meanwhile, and the sender's next message is only processed once
+ * the message is done.
+ */
+public class UpstreamDispatcher {
+
+    /**
+     * What to do with an upstream message when the queue is full.
+     */
+    public enum Backpressure {
+        /**
+         * Block the listener thread until there is room in the queue.
+         * This stalls every inbound stanza of the connection, acks included.
+         */
+        BLOCK,
+        /**
+         * Log and drop the message. Since the message has already been acked
+         * CCS won't deliver it again.
+         */
+        DROP
+    }
+
+    /**
+     * Maximum number of messages a worker processes for one sender before
+     * giving other senders a turn.
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private final PayloadProcessor mProcessor;
+    private final Function<UpstreamMessage.Request, Executor> mProcessorExecutors;
+    private final ExecutorService mExecutor;
+    private final int mQueueDepth;
+    private final Semaphore mCapacity;
+    private final Backpressure mBackpressure;
+    private final Map<String, Queue<UpstreamMessage.Request>> mQueues = new ConcurrentHashMap<>();
+
+    /**
+     * @param processor the processor all messages are handed to
+     * @param workers number of worker threads, or 0 to use a virtual thread per
+     *                sender where the JVM supports it
+     * @param queueDepth maximum number of queued and running messages
+     * @param backpressure policy for messages arriving while the queue is full
+     */
+    public UpstreamDispatcher(PayloadProcessor processor, int workers, int queueDepth, Backpressure backpressure) {
+        this(processor, message -> null, workers, queueDepth, backpressure);
+    }
+
+    /**
+     * @param processorExecutors returns the executor to process a message on, or null to
+     *                           process it on the worker
+     */
+    public UpstreamDispatcher(PayloadProcessor processor, Function<UpstreamMessage.Request, Executor> processorExecutors,
+                              int workers, int queueDepth, Backpressure backpressure) {
+        mProcessor = processor;
+        mProcessorExecutors = processorExecutors;
+        mExecutor = createExecutor(workers);
+        mQueueDepth = queueDepth;
+        mCapacity = new Semaphore(queueDepth);
+        mBackpressure = backpressure;
+    }
+
+    private static ExecutorService createExecutor(int workers) {
+        if (workers <= 0) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            }
+            catch (ReflectiveOperationException e) {
+                workers = Runtime.getRuntime().availableProcessors() * 2;
+                logger.log(Level.INFO, "Virtual threads not available, using " + workers + " upstream workers");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "upstream-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues the message for processing.
+     *
+     * @return false if the message was dropped because the queue is full
+     */
+    public boolean dispatch(UpstreamMessage.Request message) {
+        if (!acquire()) {
+            logger.log(Level.WARNING, "Upstream queue is full, dropping message " + message.getMessageId());
+            return false;
+        }
+        String sender = message.getFrom() != null ? message.getFrom() : "";
+        boolean[] schedule = new boolean[1];
+        mQueues.compute(sender, (key, queue) -> {
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                schedule[0] = true;
+            }
+            queue.add(message);
+            return queue;
+        });
+        if (schedule[0]) {
+            mExecutor.execute(() -> drain(sender));
+        }
+        return true;
+    }
+
+    private boolean acquire() {
+        if (mBackpressure == Backpressure.DROP) {
+            return mCapacity.tryAcquire();
+        }
+        try {
+            mCapacity.acquire();
+            return true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Processes the queued messages of one sender. The queue stays in the map while
+     * a worker owns it, so new messages of that sender are appended instead of
+     * starting a second worker.
+     */
+    private void drain(String sender) {
+        for (int i = 0; ; i++) {
+            if (i == BATCH_SIZE) {
+                try {
+                    mExecutor.execute(() -> drain(sender));
+                    return;
+                }
+                catch (RejectedExecutionException e) {
+                    // Shutting down, finish this sender's queue on the current thread
+                }
+            }
+            UpstreamMessage.Request message = poll(sender);
+            if (message == null) {
+                return;
+            }
+            Executor executor = executorFor(message);
+            if (executor != null) {
+                try {
+                    // The sender's queue stays owned until the message is processed
+                    executor.execute(() -> {
+                        process(message);
+                        resume(sender);
+                    });
+                    return;
+                }
+                catch (RejectedExecutionException e) {
+                    // The action was registered again meanwhile, process the message here
+                }
+            }
+            process(message);
+        }
+    }
+
+    /**
+     * Looks up the executor limiting the message's action. A failed lookup must not leak the
+     * message's permit or the sender's queue, so the message is then processed on the worker.
+     */
+    private Executor executorFor(UpstreamMessage.Request message) {
+        try {
+            return mProcessorExecutors.apply(message);
+        }
+        catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Failed to look up the executor of upstream message "
+                    + message.getMessageId(), e);
+            return null;
+        }
+    }
+
+    private void process(UpstreamMessage.Request message) {
+        try {
+            mProcessor.handleMessage(message);
+        }
+        catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Failed to process upstream message " + message.getMessageId(), e);
+        }
+        finally {
+            mCapacity.release();
+        }
+    }
+
+    /**
+     * Continues with a sender's queue on a worker after one of its messages was processed elsewhere.
+     */
+    private void resume(String sender) {
+        try {
+            mExecutor.execute(() -> drain(sender));
+        }
+        catch (RejectedExecutionException e) {
+            // Shutting down, finish this sender's queue on the current thread
+            drain(sender);
+        }
+    }
+
+    private UpstreamMessage.Request poll(String sender) {
+        UpstreamMessage.Request[] next = new UpstreamMessage.Request[1];
+        mQueues.computeIfPresent(sender, (key, queue) -> {
+            next[0] = queue.poll();
+            return next[0] != null ? queue : null;
+        });
+        return next[0];
+    }
+
+    /**
+     * Number of messages waiting or being processed.
+     */
+    public int getPendingCount() {
+        return mQueueDepth - mCapacity.availablePermits();
+    }
+
+    /**
+     * Stops accepting work and waits for the queued messages to be processed.
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        mExecutor.shutdown();
+        mExecutor.awaitTermination(timeout, unit);
+    }
+}
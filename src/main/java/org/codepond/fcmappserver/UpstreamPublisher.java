@@ -0,0 +1,211 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.UpstreamMessage;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Publishes upstream messages to a {@link Flow.Subscriber}, which pulls them at its own pace.
+ * <br>
+ * Register the publisher with the {@link ProcessorRegistry} for the actions it should publish,
+ * or as its fallback. Messages are buffered until the subscriber requests them. While the
+ * buffer is full the upstream workers wait, which fills the {@link UpstreamDispatcher} queue
+ * and in turn applies its {@link UpstreamDispatcher.Backpressure backpressure} policy to CCS.
+ * <br>
+ * There is one subscriber at a time, a second one is rejected with an {@link IllegalStateException}.
+ * Once a subscriber cancels, the next one receives the messages buffered in the meantime.
+ * Messages are delivered in the order they were processed, so the messages of a sender
+ * arrive in order.
+ */
+public class UpstreamPublisher implements Flow.Publisher<UpstreamMessage.Request>, PayloadProcessor {
+
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final BlockingQueue<UpstreamMessage.Request> mBuffer;
+    /**
+     * Number of pending calls to {@link #drain()}, only the call raising it from 0 delivers.
+     */
+    private final AtomicInteger mDrains = new AtomicInteger();
+    private volatile UpstreamSubscription mSubscription;
+    private volatile boolean mClosed;
+
+    public UpstreamPublisher() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize number of messages held while the subscriber doesn't request any
+     */
+    public UpstreamPublisher(int bufferSize) {
+        mBuffer = new ArrayBlockingQueue<>(bufferSize);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super UpstreamMessage.Request> subscriber) {
+        UpstreamSubscription subscription = new UpstreamSubscription(subscriber);
+        boolean accepted;
+        synchronized (this) {
+            accepted = mSubscription == null;
+            if (accepted) {
+                mSubscription = subscription;
+            }
+        }
+        // Nothing is delivered before the subscriber requests messages through the subscription
+        subscriber.onSubscribe(subscription);
+        if (accepted) {
+            drain();
+        }
+        else {
+            subscription.mCancelled = true;
+            subscriber.onError(new IllegalStateException("The publisher already has a subscriber"));
+        }
+    }
+
+    /**
+     * Buffers the message for the subscriber, waiting while the buffer is full.
+     */
+    @Override
+    public void handleMessage(UpstreamMessage.Request msg) {
+        if (mClosed) {
+            logger.log(Level.WARNING, "Publisher is closed, dropping upstream message " + msg.getMessageId());
+            return;
+        }
+        try {
+            mBuffer.put(msg);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Interrupted, dropping upstream message " + msg.getMessageId());
+            return;
+        }
+        drain();
+    }
+
+    /**
+     * Completes the subscriber once it has received the buffered messages. Messages arriving
+     * afterwards are dropped.
+     */
+    public void close() {
+        mClosed = true;
+        drain();
+    }
+
+    /**
+     * Number of messages waiting for the subscriber to request them.
+     */
+    public int getBufferedCount() {
+        return mBuffer.size();
+    }
+
+    /**
+     * Delivers buffered messages as far as the subscriber requested them. Calls made while
+     * another thread delivers make that thread loop once more, so only one thread at a time
+     * calls the subscriber, and the subscriber may call back into the publisher.
+     */
+    private void drain() {
+        if (mDrains.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        do {
+            UpstreamSubscription subscription = mSubscription;
+            if (subscription != null) {
+                subscription.deliver();
+            }
+            missed = mDrains.addAndGet(-missed);
+        }
+        while (missed != 0);
+    }
+
+    private final class UpstreamSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super UpstreamMessage.Request> mSubscriber;
+        /**
+         * Requested but not yet delivered messages, only written under the subscription's lock.
+         */
+        private volatile long mDemand;
+        private volatile boolean mCancelled;
+
+        UpstreamSubscription(Flow.Subscriber<? super UpstreamMessage.Request> subscriber) {
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                mSubscriber.onError(new IllegalArgumentException("Requested " + n + " messages, must be positive"));
+                return;
+            }
+            synchronized (this) {
+                long demand = mDemand + n;
+                // Saturate, Long.MAX_VALUE stands for unbounded demand
+                mDemand = demand < 0 ? Long.MAX_VALUE : demand;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            synchronized (UpstreamPublisher.this) {
+                if (mSubscription == this) {
+                    mSubscription = null;
+                }
+            }
+        }
+
+        /**
+         * Called by one thread at a time, see {@link #drain()}.
+         */
+        void deliver() {
+            while (!mCancelled && mDemand > 0) {
+                UpstreamMessage.Request message = mBuffer.poll();
+                if (message == null) {
+                    break;
+                }
+                synchronized (this) {
+                    if (mDemand != Long.MAX_VALUE) {
+                        mDemand--;
+                    }
+                }
+                try {
+                    mSubscriber.onNext(message);
+                }
+                catch (RuntimeException e) {
+                    logger.log(Level.SEVERE, "Subscriber failed to handle upstream message " + message.getMessageId(), e);
+                    cancel();
+                    return;
+                }
+            }
+            if (!mCancelled && mClosed && mBuffer.isEmpty()) {
+                cancel();
+                mSubscriber.onComplete();
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import static org.codepond.fcmappserver.CcsClient.logger;
+
+/**
+ * Writes a sample of the CCS payloads sent and received to a JSONL trace file,
+ * one object per line with the time, direction, connection id and payload.
+ * <br>
+ * Tracing a payload only costs a sampling decision and an append to a ring buffer.
+ * A background thread formats and writes the records. If the writer falls behind
+ * and the ring buffer is full, records are dropped instead of slowing down the
+ * connection. When tracing is {@link #DISABLED} nothing is done at all.
+ */
+public class WireTracer implements Closeable {
+
+    public static final WireTracer DISABLED = new WireTracer();
+
+    private static final int RING_SIZE = 1 << 14;
+
+    private static final class Record {
+        final long mTime;
+        final boolean mInbound;
+        final int mConnectionId;
+        final String mPayload;
+        final boolean mStanza;
+
+        Record(long time, boolean inbound, int connectionId, String payload, boolean stanza) {
+            mTime = time;
+            mInbound = inbound;
+            mConnectionId = connectionId;
+            mPayload = payload;
+            mStanza = stanza;
+        }
+    }
+
+    private final boolean mEnabled;
+    private final double mSampleRate;
+    private final AtomicReferenceArray<Record> mRing;
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Writer mWriter;
+    private final Thread mWriterThread;
+    private volatile long mTail;
+    private volatile boolean mClosed;
+
+    private WireTracer() {
+        mEnabled = false;
+        mSampleRate = 0;
+        mRing = null;
+        mWriter = null;
+        mWriterThread = null;
+    }
+
+    /**
+     * @param file the trace file, appended to if it exists
+     * @param sampleRate fraction of payloads to trace, between 0 and 1
+     */
+    public WireTracer(File file, double sampleRate) throws IOException {
+        mEnabled = true;
+        mSampleRate = sampleRate;
+        mRing = new AtomicReferenceArray<>(RING_SIZE);
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 1 << 16);
+        mWriterThread = new Thread(this::run, "wire-tracer");
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void traceInbound(int connectionId, String payload) {
+        trace(true, connectionId, payload, false);
+    }
+
+    public void traceOutbound(int connectionId, String payload) {
+        trace(false, connectionId, payload, false);
+    }
+
+    /**
+     * Traces the payload of a stanza built by {@link StanzaEncoder}. The payload is only
+     * extracted from the stanza if it's sampled.
+     */
+    void traceOutboundStanza(int connectionId, String stanza) {
+        trace(false, connectionId, stanza, true);
+    }
+
+    private void trace(boolean inbound, int connectionId, String payload, boolean stanza) {
+        if (!mEnabled || (mSampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= mSampleRate)) {
+            return;
+        }
+        long sequence;
+        do {
+            sequence = mHead.get();
+            if (sequence - mTail >= RING_SIZE) {
+                mDropped.incrementAndGet();
+                return;
+            }
+        } while (!mHead.compareAndSet(sequence, sequence + 1));
+        mRing.lazySet((int) (sequence & (RING_SIZE - 1)),
+                new Record(System.currentTimeMillis(), inbound, connectionId, payload, stanza));
+    }
+
+    /**
+     * Number of records dropped because the writer couldn't keep up.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    private void run() {
+        StringBuilder line = new StringBuilder(1024);
+        long tail = mTail;
+        while (true) {
+            int index = (int) (tail & (RING_SIZE - 1));
+            Record record = mRing.get(index);
+            if (record == null) {
+                if (mClosed && tail == mHead.get()) {
+                    break;
+                }
+                flush();
+                LockSupport.parkNanos(1000000);
+                continue;
+            }
+            mRing.lazySet(index, null);
+            mTail = ++tail;
+            line.setLength(0);
+            line.append("{\"ts\":").append(record.mTime)
+                    .append(",\"dir\":\"").append(record.mInbound ? "in" : "out")
+                    .append("\",\"conn\":").append(record.mConnectionId)
+                    .append(",\"payload\":");
+            appendJsonString(line, record.mStanza ? StanzaEncoder.decodePayload(record.mPayload) : record.mPayload);
+            line.append("}\n");
+            try {
+                mWriter.append(line);
+            }
+            catch (IOException e) {
+                logger.log(Level.WARNING, "Failed to write wire trace", e);
+            }
+        }
+        flush();
+    }
+
+    private void flush() {
+        try {
+            mWriter.flush();
+        }
+        catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to write wire trace", e);
+        }
+    }
+
+    static void appendJsonString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    }
+                    else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    /**
+     * Writes the remaining records and closes the trace file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!mEnabled) {
+            return;
+        }
+        mClosed = true;
+        try {
+            mWriterThread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mWriter.close();
+    }
+}
@@ -27,10 +27,25 @@ public class DownstreamMessage {
      * Downstream message sent by the app server to FCM
      */
     public static class Request extends FcmMessage {
+        public static final String PRIORITY_HIGH = "high";
+        public static final String PRIORITY_NORMAL = "normal";
+
         public Request(String to, String message_id, Map<String, String> data) {
+            this(to, message_id, data, null);
+        }
+
+        public Request(String to, String message_id, Map<String, String> data, String collapse_key) {
+            this(to, message_id, data, collapse_key, null, null);
+        }
+
+        public Request(String to, String message_id, Map<String, String> data, String collapse_key,
+                       String priority, Integer time_to_live) {
             super(null, message_id);
             this.to = to;
             this.data = data;
+            this.collapse_key = collapse_key;
+            this.priority = priority;
+            this.time_to_live = time_to_live;
         }
 
         /**
@@ -44,6 +59,23 @@ public class DownstreamMessage {
          * For example, with data:{"score":"3x1"}
          */
         private Map<String, String> data;
+        /**
+         * This parameter identifies a group of messages that can be collapsed, so that only the last message gets sent
+         * when delivery can be resumed. Messages to the same recipient with the same collapse key sent within the
+         * coalescing window of the app server are merged before they are sent.
+         */
+        private String collapse_key;
+        /**
+         * This parameter sets the priority of the message, {@link #PRIORITY_HIGH} or {@link #PRIORITY_NORMAL}.
+         * High priority messages wake a sleeping device. The app server also sends them ahead of normal
+         * and bulk messages waiting for the in-flight window.
+         */
+        private String priority;
+        /**
+         * This parameter specifies how long in seconds the message should be kept in FCM storage if the device
+         * is offline. The maximum and default is 4 weeks.
+         */
+        private Integer time_to_live;
 
         public String getTo() {
             return to;
@@ -52,6 +84,18 @@ public class DownstreamMessage {
         public Map<String, String> getData() {
             return data;
         }
+
+        public String getCollapseKey() {
+            return collapse_key;
+        }
+
+        public String getPriority() {
+            return priority;
+        }
+
+        public Integer getTimeToLive() {
+            return time_to_live;
+        }
     }
 
     /**
@@ -84,5 +128,21 @@ public class DownstreamMessage {
          * This parameter provides descriptive information for the error. It is set when the message_type is nack.
          */
         private String error_description;
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getRegistrationId() {
+            return registration_id;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public String getErrorDescription() {
+            return error_description;
+        }
     }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.codepond.fcmappserver;
+
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CcsClientTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void failedMessageDoesNotPinLaterSegments() throws Exception {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        CcsClient client = CcsClient.prepareClient("sender", "key", false);
+        client.setOutboundJournal(journal);
+        try {
+            // The client isn't connected, so the message fails once its record is on disk
+            CompletableFuture<DownstreamMessage.Response> failed = client.sendAsync("token", "failed",
+                    new MessageTemplate(Collections.singletonMap("key", "value")));
+            for (int i = 0; i < 500 && journal.getPendingCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(failed.isCompletedExceptionally());
+            assertEquals(0, journal.getPendingCount());
+
+            String stanza = new String(new char[1000]).replace('\0', 'x');
+            for (int i = 0; i < 10; i++) {
+                journal.complete(journal.append("later-" + i, stanza, Lane.BULK, () -> { }));
+            }
+            // Every segment before the current one is gone, the failed message's included
+            assertEquals(1, directory.list().length);
+        }
+        finally {
+            client.setOutboundJournal(null);
+            journal.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.codepond.fcmappserver;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundJournalTest {
+
+    private static final Runnable NOTHING = () -> { };
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void recoversMessagesThatWereNotCompleted() throws IOException {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        long first = journal.append("1", "<message>one</message>", Lane.NORMAL, NOTHING);
+        long second = journal.append("2", "<message>two</message>", Lane.NORMAL, NOTHING);
+        journal.append("3", "<message>drei \u00fc</message>", Lane.NORMAL, NOTHING);
+        journal.complete(second);
+        assertEquals(2, journal.getPendingCount());
+        journal.close();
+
+        OutboundJournal reopened = new OutboundJournal(directory, 4096);
+        assertEquals(Arrays.asList("1", "<message>one</message>", "3", "<message>drei \u00fc</message>"),
+                recover(reopened));
+        // Sequence numbers continue after the recovered ones
+        assertTrue(reopened.append("4", "<message>four</message>", Lane.NORMAL, NOTHING) > first + 2);
+        reopened.close();
+    }
+
+    @Test
+    public void recoversMessagesInTheirLane() throws IOException {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        journal.append("1", "one", Lane.HIGH, NOTHING);
+        journal.append("2", "two", Lane.BULK, NOTHING);
+        journal.close();
+
+        OutboundJournal reopened = new OutboundJournal(directory, 4096);
+        List<Lane> lanes = new ArrayList<>();
+        reopened.recover(message -> lanes.add(message.getLane()));
+        assertEquals(Arrays.asList(Lane.HIGH, Lane.BULK), lanes);
+        reopened.close();
+    }
+
+    @Test
+    public void ignoresRecordWhoseTypeWasNotWritten() throws IOException {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        journal.append("1", "one", Lane.NORMAL, NOTHING);
+        journal.append("2", "two", Lane.NORMAL, NOTHING);
+        journal.close();
+
+        // The type byte is written last, a write torn before it leaves a zero
+        writeByte(onlySegment(directory), sendLength("1", "one"), (byte) 0);
+
+        assertEquals(Arrays.asList("1", "one"), recoverFrom(directory));
+    }
+
+    @Test
+    public void ignoresRecordCutOffByEndOfFile() throws IOException {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        journal.append("1", "one", Lane.NORMAL, NOTHING);
+        journal.append("2", "two", Lane.NORMAL, NOTHING);
+        journal.close();
+
+        try (RandomAccessFile file = new RandomAccessFile(onlySegment(directory), "rw")) {
+            file.setLength(sendLength("1", "one") + 5);
+        }
+
+        assertEquals(Arrays.asList("1", "one"), recoverFrom(directory));
+    }
+
+    @Test
+    public void resendsMessageWhoseCompletionWasTorn() throws IOException {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        journal.complete(journal.append("1", "one", Lane.NORMAL, NOTHING));
+        journal.close();
+
+        writeByte(onlySegment(directory), sendLength("1", "one"), (byte) 0);
+
+        assertEquals(Arrays.asList("1", "one"), recoverFrom(directory));
+    }
+
+    @Test
+    public void deletesCompletedSegments() throws IOException {
+        File directory = mFolder.newFolder();
+        // Room for two messages per segment
+        int segmentSize = 2 * sendLength("00", "stanza") + 9;
+        OutboundJournal journal = new OutboundJournal(directory, segmentSize);
+        List<Long> sequences = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sequences.add(journal.append(String.format("%02d", i), "stanza", Lane.NORMAL, NOTHING));
+        }
+        assertTrue(directory.list().length >= 5);
+        for (int i = 1; i < 10; i++) {
+            journal.complete(sequences.get(i));
+        }
+        // The first segment still holds a message waiting for its response, so none can go
+        assertTrue(directory.list().length >= 5);
+        journal.complete(sequences.get(0));
+        assertEquals(1, directory.list().length);
+        journal.close();
+
+        assertEquals(Collections.emptyList(), recoverFrom(directory));
+    }
+
+    @Test
+    public void deletesSegmentsOfPreviousRunOnceMessagesAreJournaledAgain() throws Exception {
+        File directory = mFolder.newFolder();
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        journal.append("1", "one", Lane.NORMAL, NOTHING);
+        journal.close();
+        File previous = onlySegment(directory);
+
+        OutboundJournal reopened = new OutboundJournal(directory, 4096);
+        List<String> resent = new CopyOnWriteArrayList<>();
+        reopened.recover(message -> reopened.append(message.getMessageId(), message.getStanza(), message.getLane(),
+                () -> resent.add(message.getMessageId())));
+        for (int i = 0; i < 500 && previous.exists(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(previous.exists());
+        assertEquals(Arrays.asList("1"), resent);
+        assertEquals(1, reopened.getPendingCount());
+        reopened.close();
+
+        assertEquals(Arrays.asList("1", "one"), recoverFrom(directory));
+    }
+
+    private static List<String> recoverFrom(File directory) throws IOException {
+        OutboundJournal journal = new OutboundJournal(directory, 4096);
+        try {
+            return recover(journal);
+        }
+        finally {
+            journal.close();
+        }
+    }
+
+    private static List<String> recover(OutboundJournal journal) {
+        List<String> recovered = new ArrayList<>();
+        journal.recover(message -> {
+            recovered.add(message.getMessageId());
+            recovered.add(message.getStanza());
+        });
+        return recovered;
+    }
+
+    private static File onlySegment(File directory) {
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * Length of the record of a sent message: type, sequence, lane, id and stanza.
+     */
+    private static int sendLength(String messageId, String stanza) {
+        return 1 + 8 + 1 + 2 + messageId.getBytes(StandardCharsets.UTF_8).length
+                + 4 + stanza.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void writeByte(File file, long position, byte value) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.write(value);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.codepond.fcmappserver;
+
+import com.squareup.moshi.Moshi;
+import org.codepond.fcmappserver.messages.DownstreamMessage;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StanzaEncoderTest {
+
+    /**
+     * Characters that need JSON escaping, XML escaping or both.
+     */
+    private static final String SPECIAL = "a\"b\\c/d<e>f&g]]>h\ni\rj\tk\u0000l\u001fm\u007fn\u00e9o\ud83d\ude00p";
+
+    @Test
+    public void requestSurvivesJsonAndXmlEscaping() throws Exception {
+        Map<String, String> data = new LinkedHashMap<>();
+        data.put("text", SPECIAL);
+        data.put(SPECIAL, "key");
+        data.put("empty", "");
+        DownstreamMessage.Request request = new DownstreamMessage.Request("token<&>", "id\"1", data,
+                "collapse\\key", DownstreamMessage.Request.PRIORITY_HIGH, 60);
+
+        String stanza = StanzaEncoder.encode(request);
+        String json = StanzaEncoder.decodePayload(stanza);
+        assertEquals(json, parseGcmElement(stanza));
+
+        Map<?, ?> decoded = new Moshi.Builder().build().adapter(Map.class).fromJson(json);
+        assertEquals("token<&>", decoded.get("to"));
+        assertEquals("id\"1", decoded.get("message_id"));
+        assertEquals("collapse\\key", decoded.get("collapse_key"));
+        assertEquals("high", decoded.get("priority"));
+        assertEquals(60.0, decoded.get("time_to_live"));
+        assertEquals(data, decoded.get("data"));
+    }
+
+    @Test
+    public void leavesOutNullFields() throws Exception {
+        String json = StanzaEncoder.decodePayload(
+                StanzaEncoder.encode(new DownstreamMessage.Request("token", "id", null)));
+        assertEquals("{\"to\":\"token\",\"message_id\":\"id\"}", json);
+        Map<?, ?> decoded = new Moshi.Builder().build().adapter(Map.class).fromJson(json);
+        assertNull(decoded.get("data"));
+    }
+
+    @Test
+    public void wrappedJsonSurvivesXmlEscaping() throws Exception {
+        String json = "{\"to\":\"a<b>&c\",\"data\":{\"x\":\"]]>\"}}";
+        String stanza = StanzaEncoder.encode(json);
+        assertEquals(json, StanzaEncoder.decodePayload(stanza));
+        assertEquals(json, parseGcmElement(stanza));
+    }
+
+    @Test
+    public void ackNamesRecipientAndMessage() throws Exception {
+        String stanza = StanzaEncoder.encodeAck("from&to", "id<1>");
+        assertEquals("{\"to\":\"from&to\",\"message_id\":\"id<1>\",\"message_type\":\"ack\"}",
+                StanzaEncoder.decodePayload(stanza));
+        assertEquals(StanzaEncoder.decodePayload(stanza), parseGcmElement(stanza));
+    }
+
+    @Test
+    public void templateMatchesRequest() {
+        Map<String, String> data = new LinkedHashMap<>();
+        data.put("text", SPECIAL);
+        data.put("n", "1");
+        assertTemplateMatchesRequest(new MessageTemplate(data));
+        assertTemplateMatchesRequest(new MessageTemplate(data, "collapse<key>"));
+        assertTemplateMatchesRequest(new MessageTemplate(data, null, DownstreamMessage.Request.PRIORITY_NORMAL, 0));
+        assertTemplateMatchesRequest(new MessageTemplate(data, "key", DownstreamMessage.Request.PRIORITY_HIGH, 3600));
+        assertTemplateMatchesRequest(new MessageTemplate(null, "key", null, 10));
+        assertTemplateMatchesRequest(new MessageTemplate(null));
+    }
+
+    private static void assertTemplateMatchesRequest(MessageTemplate template) {
+        String to = "token\"" + template.hashCode();
+        String messageId = "m<" + template.hashCode() + ">";
+        assertEquals(StanzaEncoder.encode(template.toRequest(to, messageId)), template.encode(to, messageId));
+    }
+
+    @Test
+    public void largeMessagesDoNotCorruptLaterOnes() {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            large.append('<');
+        }
+        Map<String, String> data = new LinkedHashMap<>();
+        data.put("large", large.toString());
+        StanzaEncoder.encode(new DownstreamMessage.Request("token", "large", data));
+        assertEquals("{\"to\":\"token\",\"message_id\":\"small\"}",
+                StanzaEncoder.decodePayload(StanzaEncoder.encode(new DownstreamMessage.Request("token", "small", null))));
+    }
+
+    /**
+     * Reads the payload the way an XML parser on the other end does.
+     */
+    private static String parseGcmElement(String stanza) throws Exception {
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new InputSource(new StringReader(stanza)));
+        return document.getElementsByTagName(CcsClient.GCM_ELEMENT_NAME).item(0).getTextContent();
+    }
+}
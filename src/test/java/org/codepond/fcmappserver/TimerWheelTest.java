@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.codepond.fcmappserver;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TimerWheelTest {
+
+    private final TimerWheel mWheel = new TimerWheel("test-timer", 1, TimeUnit.MILLISECONDS, 8);
+
+    @After
+    public void stop() {
+        mWheel.stop();
+    }
+
+    @Test
+    public void expiresTimeoutsSeveralRotationsAway() throws InterruptedException {
+        // Both land in the same bucket of the 8 ms wheel, the later one 4 rotations on
+        CountDownLatch latch = new CountDownLatch(2);
+        long start = System.nanoTime();
+        AtomicLong near = new AtomicLong();
+        AtomicLong far = new AtomicLong();
+        mWheel.schedule(() -> {
+            far.set(System.nanoTime() - start);
+            latch.countDown();
+        }, 3 + 4 * 8, TimeUnit.MILLISECONDS);
+        mWheel.schedule(() -> {
+            near.set(System.nanoTime() - start);
+            latch.countDown();
+        }, 3, TimeUnit.MILLISECONDS);
+        assertEquals(2, mWheel.getPendingCount());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(near.get() >= TimeUnit.MILLISECONDS.toNanos(3));
+        assertTrue(far.get() >= TimeUnit.MILLISECONDS.toNanos(35));
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void expiresTimeoutsInDeadlineOrderAcrossRotations() throws InterruptedException {
+        int count = 50;
+        CountDownLatch latch = new CountDownLatch(count);
+        long start = System.nanoTime();
+        long[] fired = new long[count];
+        for (int i = count - 1; i >= 0; i--) {
+            int index = i;
+            mWheel.schedule(() -> {
+                fired[index] = System.nanoTime() - start;
+                latch.countDown();
+            }, 2 * i, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            assertTrue("timeout " + i + " fired early", fired[i] >= TimeUnit.MILLISECONDS.toNanos(2 * i));
+            if (i > 0) {
+                assertTrue("timeout " + i + " fired before " + (i - 1), fired[i] >= fired[i - 1]);
+            }
+        }
+    }
+
+    @Test
+    public void cancelledTimeoutNeverRuns() throws InterruptedException {
+        AtomicBoolean ran = new AtomicBoolean();
+        TimerWheel.Timeout timeout = mWheel.schedule(() -> ran.set(true), 20, TimeUnit.MILLISECONDS);
+        CountDownLatch later = new CountDownLatch(1);
+        mWheel.schedule(later::countDown, 40, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(ran.get());
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void expiredTimeoutCannotBeCancelled() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = mWheel.schedule(latch::countDown, 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+}
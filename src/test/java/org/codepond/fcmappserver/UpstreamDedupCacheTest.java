@@ -0,0 +1,74 @@
+/*
+ * Copyright 2016 Nimrod Dayan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.codepond.fcmappserver;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class UpstreamDedupCacheTest {
+
+    @Test
+    public void detectsRedeliveredMessages() {
+        UpstreamDedupCache cache = new UpstreamDedupCache(10, TimeUnit.MINUTES, 1000);
+        assertFalse(cache.isDuplicate("token", "1"));
+        assertTrue(cache.isDuplicate("token", "1"));
+        assertFalse(cache.isDuplicate("other", "1"));
+        assertFalse(cache.isDuplicate(null, "1"));
+        assertTrue(cache.isDuplicate(null, "1"));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void neverRemembersMessagesWithoutId() {
+        UpstreamDedupCache cache = new UpstreamDedupCache(10, TimeUnit.MINUTES, 1000);
+        assertFalse(cache.isDuplicate("token", null));
+        assertFalse(cache.isDuplicate("token", null));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void fingerprintSeparatesSenderFromMessageId() {
+        assertNotEquals(UpstreamDedupCache.fingerprint("ab", "c"), UpstreamDedupCache.fingerprint("a", "bc"));
+        assertNotEquals(0, UpstreamDedupCache.fingerprint("", ""));
+    }
+
+    @Test
+    public void forgetsMessagesAfterTheWindow() throws InterruptedException {
+        UpstreamDedupCache cache = new UpstreamDedupCache(40, TimeUnit.MILLISECONDS, 1000);
+        assertFalse(cache.isDuplicate("token", "1"));
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertFalse(cache.isDuplicate("token", "1"));
+    }
+
+    @Test
+    public void staysWithinMaxEntries() {
+        UpstreamDedupCache cache = new UpstreamDedupCache(10, TimeUnit.MINUTES, 640);
+        for (int i = 0; i < 100000; i++) {
+            cache.isDuplicate("token", Integer.toString(i));
+            assertTrue(cache.size() <= 640);
+        }
+        assertFalse(cache.isDuplicate("token", "0"));
+        assertTrue(cache.isDuplicate("token", "99999"));
+    }
+}